@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import TextClient.MessageSender;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Canned message streams for the protocol benchmarks.
+ * Client messages are encoded by the clients MessageSender and server 
+ * messages by the servers writers, so both are exactly what goes over the 
+ * wire. A fixed seed gives the same corpus on every run.
+ */
+public class Corpus {
+    public static final int MESSAGES = 1024; //messages in a client corpus.
+    static final String HEARTBEAT = "hb";
+    
+    /**
+     * A session of client messages, mostly turn actions.
+     * @param format is Sink.TEXT or Sink.BINARY.
+     * @param board is the board size, boards over 10 need the long text coordinates.
+     */
+    public static byte[] client(String format, int board){
+        Random r = new Random(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageSender s = new MessageSender(bytes);
+        s.setBinary(format.equals(Sink.BINARY));
+        for(int i = 0; i < MESSAGES; i++){
+            switch(i % 10){
+                case 0:
+                    s.fireMsg(r.nextInt(board), r.nextInt(board));
+                    break;
+                case 1:
+                    s.scanMsg(r.nextInt(board), r.nextInt(board));
+                    break;
+                case 2:
+                    s.startMsg(r.nextInt(board), r.nextInt(board));
+                    break;
+                case 3:
+                case 4:
+                    s.moveMsg(1 + r.nextInt(4));
+                    break;
+                case 5:
+                case 6:
+                    s.hbMsg(HEARTBEAT);
+                    break;
+                case 7:
+                    s.connectMsg("game" + i);
+                    break;
+                case 8:
+                    s.loginMsg("player" + i);
+                    break;
+                default:
+                    s.queueMsg(4);
+            }
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * What a player gets during a game: start of game, start and end of 
+     * turns with up to 3 scan hits, heartbeats and board summaries of 8 
+     * players.
+     * @param format is Sink.TEXT or Sink.BINARY.
+     * @param board is the board size.
+     */
+    public static byte[] turns(String format, int board){
+        Random r = new Random(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageWriter w = writer(format, bytes);
+        String[] names = new String[8];
+        int[] ships = new int[names.length * 3];
+        for(int i = 0; i < names.length; i++)
+            names[i] = "player" + i;
+        int[] hits = new int[6];
+        w.startOfGame(new String[]{"player1", "player2", "player3"});
+        for(int turn = 1; turn <= MESSAGES / 4; turn++){
+            w.startOfTurn(1 + r.nextInt(2));
+            int count = r.nextInt(4);
+            for(int i = 0; i < count * 2; i++)
+                hits[i] = r.nextInt(board);
+            w.endOfTurn(r.nextBoolean(), hits, 0, count);
+            w.heartbeat(HEARTBEAT);
+            for(int i = 0; i < ships.length; i++)
+                ships[i] = r.nextInt(board);
+            w.board(turn, names, ships, names.length);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * A full game list.
+     * @param format is Sink.TEXT or Sink.BINARY.
+     * @param games is the number of games in it.
+     */
+    public static byte[] gameList(String format, int games){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer(format, bytes).gameList(Arrays.asList(names(games)));
+        return bytes.toByteArray();
+    }
+    
+    static String[] names(int games){
+        String[] names = new String[games];
+        for(int i = 0; i < games; i++)
+            names[i] = "game" + i;
+        return names;
+    }
+    
+    private static MessageWriter writer(String format, ByteArrayOutputStream out){
+        return format.equals(Sink.BINARY) ? new BinaryMessageWriter(out) : new TextMessageWriter(out);
+    }
+}
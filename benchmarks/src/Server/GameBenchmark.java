@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the turn engine.
+ * 
+ * Every player writes into an in-memory Sink, in text or binary. Hits do 
+ * no damage, so a game never ends and the board keeps the same number of 
+ * ships, players / size^2 of them per square on average. The actions are 
+ * posted to the game from one of its own actions, so they run in the same 
+ * drain rather than each paying for a handoff to the game thread, and each 
+ * benchmark waits until the game has run them. The turn benchmarks are one 
+ * whole turn, each player acting once and the game sending EOT and SOT. 
+ * Start and Remove make a new game for every op, its allocation is counted 
+ * in their gc.alloc.rate.norm.
+ * 
+ * The benchmarks need the game and client classes and JMH, build them 
+ * beside src:
+ *   javac -cp jmh-core.jar:jmh-generator-annprocess.jar -d out src/Server/*.java src/TextClient/*.java \
+ *       benchmarks/src/Server/*.java benchmarks/src/TextClient/*.java
+ *   java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar Server.GameBenchmark [regexp]
+ * ProtocolBenchmark and TextClient.ClientBenchmark run the same way.
+ * main adds the GC profiler, for the allocation rate per op.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GameBenchmark {
+    @Param({"4", "8", "64", "1024"})
+    int players;
+    @Param({"10", "100"})
+    int size;
+    @Param({Sink.TEXT, Sink.BINARY})
+    String format;
+    
+    Game game;
+    String[] names;
+    private final AtomicLong done = new AtomicLong();
+    private long posted;
+    private int seed = 1;
+    
+    //a game waiting for its start locations.
+    void create(){
+        GameServer.gameList = new ConcurrentHashMap();
+        GameServer.activeGames = new ConcurrentHashMap();
+        game = new Game("bench", players, GameServer.HP, GameServer.SCAN_DISTANCE, 0, 
+                true, 0, size);
+        names = new String[players];
+        for(int i = 0; i < players; i++){
+            names[i] = "p" + i;
+            game.join(names[i], Sink.writer(format), null);
+        }
+        await();
+    }
+    
+    //a game in its first turn.
+    void play(){
+        create();
+        for(String n: names)
+            game.setStart(n, next(size), next(size));
+        await();
+    }
+    
+    //runs action on the game thread and waits for it, and for anything it 
+    //posts to the game.
+    void run(Runnable action){
+        game.post(action);
+        await();
+    }
+    
+    //waits until the game has run everything posted so far.
+    void await(){
+        long target = ++posted;
+        game.post(() -> done.lazySet(target));
+        while(done.get() != target)
+            Thread.onSpinWait();
+    }
+    
+    //cheap deterministic random numbers, so runs can be compared.
+    int next(int bound){
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return (seed & Integer.MAX_VALUE) % bound;
+    }
+    
+    /**
+     * Games with every turn played.
+     */
+    public static class Turns extends GameBenchmark {
+        @Setup(Level.Trial)
+        public void setup(){
+            play();
+        }
+        
+        @Benchmark
+        public void move(){
+            run(() -> {
+                for(String n: names){
+                    int dir = 1 + next(8);
+                    game.move(n, dir < 5 ? dir : dir + 1);//no 5, it stays put.
+                }
+            });
+        }
+        @Benchmark
+        public void fire(){
+            run(() -> {
+                for(String n: names)
+                    game.fire(n, next(size), next(size));
+            });
+        }
+        @Benchmark
+        public void scan(){
+            run(() -> {
+                for(String n: names)
+                    game.scan(n, next(size), next(size));
+            });
+        }
+        @Benchmark
+        public void mixed(){
+            run(() -> {
+                for(String n: names){
+                    switch(next(3)){
+                        case 0:
+                            game.move(n, next(2) == 0 ? 4 : 6);
+                            break;
+                        case 1:
+                            game.fire(n, next(size), next(size));
+                            break;
+                        default:
+                            game.scan(n, next(size), next(size));
+                    }
+                }
+            });
+        }
+        /**
+         * Ends a turn in which nobody acted, so every player is scanned 
+         * around their ship.
+         */
+        @Benchmark
+        public void sendEOT(){
+            run(game::sendEOT);
+        }
+        @Benchmark
+        public void sendSOT(){
+            run(() -> {
+                game.ready = true;
+                game.sendSOT();
+            });
+        }
+    }
+    
+    /**
+     * Setting every start location, which starts the first turn.
+     * A new game is made for each one.
+     */
+    public static class Start extends GameBenchmark {
+        @Setup(Level.Invocation)
+        public void setup(){
+            create();
+        }
+        
+        @Benchmark
+        public void setStart(){
+            run(() -> {
+                for(String n: names)
+                    game.setStart(n, next(size), next(size));
+            });
+        }
+    }
+    
+    /**
+     * Every player leaving a game in play, one removeClient each.
+     * A new game is made for each one.
+     */
+    public static class Remove extends GameBenchmark {
+        @Setup(Level.Invocation)
+        public void setup(){
+            play();
+        }
+        
+        @Benchmark
+        public void removeClient(){
+            run(() -> {
+                for(String n: names)
+                    game.removeClient(n);
+            });
+        }
+    }
+    
+    public static void main(String[] args) throws RunnerException{
+        new Runner(new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : GameBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
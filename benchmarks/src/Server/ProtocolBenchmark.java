@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the servers side of the protocol, in ns per message.
+ * 
+ * decode runs a Corpus of client messages through a MessageDecoder the 
+ * way ClientThread.handleInput does, a buffer full at a time, and reads 
+ * the fields its handler would. The encode benchmarks write into a Sink. 
+ * main adds the GC profiler, gc.alloc.rate.norm is the bytes allocated 
+ * per message. Build and run them as described in GameBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final byte[] HEARTBEAT = Corpus.HEARTBEAT.getBytes(StandardCharsets.UTF_8);
+    
+    @State(Scope.Thread)
+    public static class Decode {
+        @Param({Sink.TEXT, Sink.BINARY})
+        String format;
+        @Param({"10", "1000"})
+        int board;
+        
+        byte[] corpus;
+        final MessageDecoder decoder = new MessageDecoder();
+        final Message message = new Message();
+        
+        @Setup(Level.Trial)
+        public void setup(){
+            corpus = Corpus.client(format, board);
+            decoder.setBinary(format.equals(Sink.BINARY));
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Lists {
+        @Param({Sink.TEXT, Sink.BINARY})
+        String format;
+        @Param({"10", "1000", "10000"})
+        int games;
+        
+        List<String> names;
+        MessageWriter writer;
+        Lobby.Snapshot snapshot;
+        Lobby.Delta delta;
+        Set<String> added = new LinkedHashSet();
+        Set<String> removed = new LinkedHashSet();
+        
+        @Setup(Level.Trial)
+        public void setup(){
+            String[] n = Corpus.names(games);
+            names = Arrays.asList(n);
+            writer = Sink.writer(format);
+            snapshot = new Lobby.Snapshot(2, n);
+            added.add("added");
+            removed.add(n[0]);
+            delta = new Lobby.Delta(1, added, removed);
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Turns {
+        @Param({Sink.TEXT, Sink.BINARY})
+        String format;
+        @Param({"10", "1000"})
+        int board;
+        
+        MessageWriter writer;
+        final int[] hits = new int[Corpus.MESSAGES * 2];
+        final int[] counts = new int[Corpus.MESSAGES];
+        
+        @Setup(Level.Trial)
+        public void setup(){
+            writer = Sink.writer(format);
+            Random r = new Random(1);
+            for(int i = 0; i < hits.length; i++)
+                hits[i] = r.nextInt(board);
+            for(int i = 0; i < counts.length; i++)
+                counts[i] = r.nextInt(4);
+        }
+    }
+    
+    /**
+     * Decoding and dispatching a session of client messages.
+     */
+    @Benchmark
+    @OperationsPerInvocation(Corpus.MESSAGES)
+    public void decode(Decode s, Blackhole bh){
+        ByteBuffer buffer = s.decoder.buffer;
+        Message m = s.message;
+        int read = 0;
+        while(read < s.corpus.length){
+            int n = Math.min(buffer.remaining(), s.corpus.length - read);
+            buffer.put(s.corpus, read, n);
+            read += n;
+            buffer.flip();
+            while(s.decoder.next(m)){
+                switch(m.type){
+                    case ClientThread.HEARTBEAT:
+                        bh.consume(m.textEquals(HEARTBEAT));
+                        break;
+                    case ClientThread.LOGIN:
+                    case ClientThread.CONNECT:
+                        bh.consume(m.text());
+                        break;
+                    default:
+                        bh.consume(m.x);
+                        bh.consume(m.y);
+                }
+            }
+            buffer.compact();
+        }
+    }
+    
+    /**
+     * Encoding a full game list, once per format for each new lobby version.
+     */
+    @Benchmark
+    public void gameList(Lists s){
+        s.writer.gameList(s.names);
+    }
+    
+    /**
+     * Sending a lobby version to a subscriber, the full list to text clients 
+     * and the delta to binary ones.
+     */
+    @Benchmark
+    public void sendGameList(Lists s){
+        s.writer.gameList(s.snapshot, s.delta, 1);
+    }
+    
+    /**
+     * Making a lobby version, a delta of one change and both full lists.
+     * It encodes both formats whatever the format param says.
+     */
+    @Benchmark
+    public Lobby.Snapshot publish(Lists s, Blackhole bh){
+        bh.consume(new Lobby.Delta(1, s.added, s.removed));
+        return new Lobby.Snapshot(2, s.names.toArray(new String[s.games]));
+    }
+    
+    /**
+     * Encoding the end of turn with 0 to 3 scan hits.
+     */
+    @Benchmark
+    @OperationsPerInvocation(Corpus.MESSAGES)
+    public void endOfTurn(Turns s){
+        for(int i = 0; i < Corpus.MESSAGES; i++)
+            s.writer.endOfTurn((i & 1) == 0, s.hits, i, s.counts[i]);
+    }
+    
+    public static void main(String[] args) throws RunnerException{
+        new Runner(new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : ProtocolBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
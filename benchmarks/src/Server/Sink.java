@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.OutputStream;
+
+/**
+ * An in-memory stand-in for a clients socket.
+ * Copies what is written into a small reused buffer, so the benchmarks pay 
+ * for moving the bytes but not for the network, and counts them.
+ */
+class Sink extends OutputStream {
+    static final String TEXT = "text";
+    static final String BINARY = "binary";
+    private final byte[] buffer = new byte[1 << 16];
+    private int position;
+    long bytes; //everything written so far.
+    
+    /**
+     * @param format is TEXT or BINARY.
+     * @return a writer encoding into a new sink.
+     */
+    static MessageWriter writer(String format){
+        return format.equals(BINARY) ? new BinaryMessageWriter(new Sink()) 
+                : new TextMessageWriter(new Sink());
+    }
+    
+    @Override
+    public void write(int b){
+        if(position == buffer.length)
+            position = 0;
+        buffer[position++] = (byte)b;
+        bytes++;
+    }
+    @Override
+    public void write(byte[] b, int off, int len){
+        bytes += len;
+        while(len > 0){
+            if(position == buffer.length)
+                position = 0;
+            int n = Math.min(len, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+}
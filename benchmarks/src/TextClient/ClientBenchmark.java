@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package TextClient;
+
+import Server.Corpus;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the clients message parsing, in ns per message.
+ * Each op is one MessageReader.read of a Corpus of server messages, 
+ * replayed over and over. main adds the GC profiler, gc.alloc.rate.norm 
+ * is the bytes allocated per message. Build and run them as described in 
+ * Server.GameBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientBenchmark {
+    
+    /**
+     * Messages during a game, start and end of turns, heartbeats and 
+     * board summaries.
+     */
+    @State(Scope.Thread)
+    public static class Turns {
+        @Param({"text", "binary"})
+        String format;
+        @Param({"10", "1000"})
+        int board;
+        MessageReader in;
+        
+        @Setup(Level.Trial)
+        public void setup(){
+            in = new MessageReader(new Replay(Corpus.turns(format, board)));
+            in.setBinary(format.equals("binary"));
+        }
+    }
+    
+    /**
+     * Full game lists.
+     */
+    @State(Scope.Thread)
+    public static class Lists {
+        @Param({"text", "binary"})
+        String format;
+        @Param({"10", "1000"})
+        int games;
+        MessageReader in;
+        
+        @Setup(Level.Trial)
+        public void setup(){
+            in = new MessageReader(new Replay(Corpus.gameList(format, games)));
+            in.setBinary(format.equals("binary"));
+        }
+    }
+    
+    @Benchmark
+    public ServerMessage turns(Turns s) throws IOException{
+        return s.in.read();
+    }
+    
+    @Benchmark
+    public ServerMessage gameList(Lists s) throws IOException{
+        return s.in.read();
+    }
+    
+    //plays the same bytes forever, they must end on a message boundary.
+    private static class Replay extends InputStream {
+        private final byte[] bytes;
+        private int position;
+        
+        Replay(byte[] bytes){
+            this.bytes = bytes;
+        }
+        @Override
+        public int read(){
+            if(position == bytes.length)
+                position = 0;
+            return bytes[position++] & 0xff;
+        }
+        @Override
+        public int read(byte[] b, int off, int len){
+            if(position == bytes.length)
+                position = 0;
+            int n = Math.min(len, bytes.length - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+    
+    public static void main(String[] args) throws RunnerException{
+        new Runner(new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : ClientBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
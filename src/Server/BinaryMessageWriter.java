@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.OutputStream;
+import java.util.Set;
+
+/**
+ * Writes messages as length prefixed binary frames, see MessageDecoder for 
+ * the layout. Lists of strings (A, B) are a varint count followed by each 
+ * string as a varint length and its bytes. A lobby delta (D) is a list of 
+ * added games followed by a list of removed games.
+ * A frame too long for the 2 byte length, such as the roster of a big 
+ * battle royale, has EXTENDED in its place followed by a 4 byte length.
+ */
+class BinaryMessageWriter extends MessageWriter {
+    static final int VERSION = 1;
+    static final int EXTENDED = 0xffff; //length prefix of a frame with a 4 byte length.
+    
+    private static final byte[] END_OF_GAME_WIN = {0, 2, END_OF_GAME, 1};
+    private static final byte[] END_OF_GAME_LOSE = {0, 2, END_OF_GAME, 0};
+    private static final byte[] NEWGAME_JOIN_MSG = {0, 2, NEWGAME, NEWGAME_JOIN};
+    private static final byte[] NEWGAME_CREATE_MSG = {0, 2, NEWGAME, NEWGAME_CREATE};
+    private static final byte[] NEWGAME_ERROR_MSG = {0, 2, NEWGAME, NEWGAME_ERROR};
+    private static final byte[] NEWGAME_WATCH_MSG = {0, 2, NEWGAME, NEWGAME_WATCH};
+    
+    BinaryMessageWriter(OutputStream out){
+        super(out);
+    }
+    
+    @Override
+    int headerAt(byte[] message){//after the length.
+        return (message[0] & message[1] & 0xff) == 0xff ? 6 : 2;
+    }
+    
+    @Override
+    void welcome(String message){
+        frame(WELCOME);
+        putString(message);
+        finish();
+    }
+    @Override
+    void newGame(int result){
+        switch(result){
+            case NEWGAME_JOIN:
+                send(NEWGAME_JOIN_MSG);
+                break;
+            case NEWGAME_CREATE:
+                send(NEWGAME_CREATE_MSG);
+                break;
+            case NEWGAME_WATCH:
+                send(NEWGAME_WATCH_MSG);
+                break;
+            default:
+                send(NEWGAME_ERROR_MSG);
+        }
+    }
+    @Override
+    void error(int code){
+        frame(ERROR);
+        varint(code);
+        finish();
+    }
+    @Override
+    void gameList(Iterable<String> games){
+        frame(AVAILABLE_GAMES);
+        int count = 0;
+        for(String game: games)
+            count++;
+        varint(count);
+        for(String game: games)
+            listItem(game);
+        finish();
+    }
+    @Override
+    void gameList(Lobby.Snapshot snapshot, Lobby.Delta delta, long knownVersion){
+        if(delta != null && delta.fromVersion == knownVersion)
+            send(delta.binary);
+        else
+            send(snapshot.binary);
+    }
+    /**
+     * Sends the games added and removed since the last list.
+     */
+    void gameListDelta(Set<String> added, Set<String> removed){
+        frame(GAME_LIST_DELTA);
+        varint(added.size());
+        for(String game: added)
+            listItem(game);
+        varint(removed.size());
+        for(String game: removed)
+            listItem(game);
+        finish();
+    }
+    @Override
+    void heartbeat(String message){
+        frame(HEARTBEAT);
+        putString(message);
+        finish();
+    }
+    @Override
+    void heartbeat(byte[] text, int off, int length){
+        frame(HEARTBEAT);
+        put(text, off, length);
+        finish();
+    }
+    @Override
+    void capabilities(int version){
+        frame(CAPABILITIES);
+        varint(version);
+        finish();
+    }
+    @Override
+    void resume(String token){
+        frame(RESUME);
+        putString(token);
+        finish();
+    }
+    @Override
+    void startOfGame(String[] opponents){
+        frame(START_OF_GAME);
+        varint(opponents.length);
+        for(String name: opponents)
+            listItem(name);
+        finish();
+    }
+    @Override
+    void startOfGame(Game.Roster roster){
+        send(roster.binary);
+    }
+    @Override
+    void startLocation(int x, int y){
+        frame(START_LOCATION);
+        varint(x);
+        varint(y);
+        finish();
+    }
+    @Override
+    void startOfTurn(int hp){
+        frame(START_OF_TURN);
+        varint(hp);
+        finish();
+    }
+    @Override
+    void endOfTurn(boolean hit, int[] scanHits, int offset, int count){
+        frame(END_OF_TURN);
+        varint(hit ? 1 : 0);
+        varint(count);
+        for(int i = offset; i < offset + count * 2; i++)
+            varint(scanHits[i]);
+        finish();
+    }
+    @Override
+    void endOfGame(boolean win){
+        send(win ? END_OF_GAME_WIN : END_OF_GAME_LOSE);
+    }
+    //[turn][count]{[name][x][y][hp + 1]}*, hp is -1 for a sunk ship.
+    @Override
+    void board(int turn, String[] names, int[] players, int count){
+        frame(BOARD);
+        varint(turn);
+        varint(count);
+        for(int i = 0; i < count; i++){
+            listItem(names[i]);
+            varint(players[i * 3]);
+            varint(players[i * 3 + 1]);
+            varint(players[i * 3 + 2] + 1);
+        }
+        finish();
+    }
+    @Override
+    void board(Game.Summary summary){
+        send(summary.binary);
+    }
+    
+    //starts a frame, leaving room for the length.
+    private void frame(char type){
+        begin();
+        put(0);
+        put(0);
+        put(type);
+    }
+    
+    //fills in the length and sends the frame.
+    private void finish(){
+        int length = len - 2;
+        if(length >= EXTENDED){//make room for the 4 byte length.
+            put(0);
+            put(0);
+            put(0);
+            put(0);
+            System.arraycopy(buf, 2, buf, 6, length);
+            buf[0] = buf[1] = (byte)EXTENDED;
+            buf[2] = (byte)(length >>> 24);
+            buf[3] = (byte)(length >>> 16);
+            buf[4] = (byte)(length >>> 8);
+            buf[5] = (byte)length;
+        }else{
+            buf[0] = (byte)(length >>> 8);
+            buf[1] = (byte)length;
+        }
+        send();
+    }
+    
+    private void varint(int value){
+        while((value & ~0x7f) != 0){
+            put((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        put(value);
+    }
+    
+    //string with a varint length prefix, for lists.
+    private void listItem(String s){
+        varint(utf8Length(s));
+        putString(s);
+    }
+}
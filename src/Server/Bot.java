@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A player that lives in the server.
+ * 
+ * A bot joins a game like a client, but its MessageWriter hands each 
+ * message straight to the bot instead of encoding it, and the bot answers 
+ * by calling the games actions. It fires at the last enemy it saw, and 
+ * otherwise moves or scans at random. Messages arrive on the games own 
+ * thread, so a bot needs no locks.
+ * 
+ * Run it to measure the turn engine without any networking: 
+ *   java Server.Bot [games] [players]
+ */
+class Bot extends MessageWriter {
+    private static final AtomicInteger ids = new AtomicInteger();
+    static final LongAdder turns = new LongAdder(); //turns played by every bot.
+    
+    final String name = "bot#" + ids.incrementAndGet(); //clients can't log in with a #.
+    private final Game game;
+    private final CountDownLatch ended; //counted down at the end of the game, may be null.
+    private int x, y;                   //where the bot is.
+    private int targetX = -1, targetY;  //an enemy seen last turn, -1 for none.
+    
+    /**
+     * @param ended is counted down when the bots game ends, may be null.
+     */
+    Bot(Game game, CountDownLatch ended){
+        super(OutputStream.nullOutputStream());
+        this.game = game;
+        this.ended = ended;
+    }
+    
+    /**
+     * Adds a bot to a game.
+     */
+    static Bot join(Game game, CountDownLatch ended){
+        Bot b = new Bot(game, ended);
+        game.join(b.name, b, null);
+        return b;
+    }
+    
+    private void start(){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        x = random.nextInt(game.size);
+        y = random.nextInt(game.size);
+        game.setStart(name, x, y);
+    }
+    
+    private void act(){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if(targetX >= 0){
+            game.fire(name, targetX, targetY);
+        }else if(random.nextBoolean()){
+            game.scan(name, random.nextInt(game.size), random.nextInt(game.size));
+        }else{
+            int dir;
+            do{
+                dir = 1 + random.nextInt(9);
+            }while(dir == 5);
+            //the same moves as Game.move, so we know where we end up.
+            if(dir % 3 == 1 && x > 0)
+                x--;
+            else if(dir % 3 == 0 && x < game.size - 1)
+                x++;
+            if(dir <= 3 && y < game.size - 1)
+                y++;
+            else if(dir >= 7 && y > 0)
+                y--;
+            game.move(name, dir);
+        }
+    }
+    
+    @Override
+    void startOfGame(String[] opponents){
+        start();
+    }
+    @Override
+    void startOfGame(Game.Roster roster){
+        start();
+    }
+    @Override
+    void startLocation(int x, int y){//picked for us, so keep track of where we are.
+        this.x = x;
+        this.y = y;
+    }
+    @Override
+    void startOfTurn(int hp){
+        turns.increment();
+        act();
+    }
+    @Override
+    void endOfTurn(boolean hit, int[] scanHits, int offset, int count){
+        if(count == 0){
+            targetX = -1;
+            return;
+        }
+        int i = offset + ThreadLocalRandom.current().nextInt(count) * 2;
+        targetX = scanHits[i];
+        targetY = scanHits[i + 1];
+    }
+    @Override
+    void endOfGame(boolean win){
+        if(ended != null)
+            ended.countDown();
+    }
+    
+    //Nothing else needs an answer.
+    @Override
+    void welcome(String message){}
+    @Override
+    void newGame(int result){}
+    @Override
+    void error(int code){}
+    @Override
+    void gameList(Iterable<String> games){}
+    @Override
+    void gameList(Lobby.Snapshot snapshot, Lobby.Delta delta, long knownVersion){}
+    @Override
+    void heartbeat(String message){}
+    @Override
+    void heartbeat(byte[] text, int off, int length){}
+    @Override
+    void capabilities(int version){}
+    @Override
+    void resume(String token){}
+    @Override
+    void board(int turn, String[] names, int[] players, int count){}
+    @Override
+    void board(Game.Summary summary){}
+    
+    /**
+     * Plays games of bots only, as fast as the game threads allow, and 
+     * prints the turn rate.
+     * @param args [games] [players per game]
+     */
+    public static void main(String[] args) throws InterruptedException{
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int players = args.length > 1 ? Integer.parseInt(args[1]) : GameServer.PLAYERS;
+        GameServer.gameList = new ConcurrentHashMap();
+        GameServer.activeGames = new ConcurrentHashMap();
+        //every player gets an end of game, the winner included.
+        CountDownLatch ended = new CountDownLatch(games * players);
+        long start = System.nanoTime();
+        for(int g = 0; g < games; g++){
+            Game game = new Game("bots" + g, players, GameServer.HP, GameServer.SCAN_DISTANCE, 
+                    GameServer.HIT_DAMAGE, GameServer.SCAN_NEAR_SHIP, 0, GameServer.boardSize);
+            for(int p = 0; p < players; p++)
+                join(game, ended);
+        }
+        boolean done = ended.await(10, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long played = turns.sum();
+        System.out.printf("%d games of %d bots%s in %.2fs%n", games, players, 
+                done ? "" : " (timed out)", seconds);
+        System.out.printf("%.0f player turns/s, %.0f games/s, %.1f turns per game%n", 
+                played / seconds, games / seconds, (double)played / players / games);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * OutputStream over a non-blocking SocketChannel.
+ * Writes go straight to the channel, whatever the socket will not take is 
+ * queued and written by the selector thread when the channel is writable.
+ * Any thread may write, so all access is synchronized.
+ */
+class ChannelOutputStream extends OutputStream {
+    static final int MAX_PENDING = 1 << 20; //drop clients that stop reading.
+    
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioServer.IoLoop loop;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque();
+    private int pendingBytes = 0;
+    
+    ChannelOutputStream(SocketChannel channel, SelectionKey key, NioServer.IoLoop loop){
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+    }
+    
+    @Override
+    public void write(int b) throws IOException{
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException{
+        write(b, off, len, false);
+    }
+    
+    /**
+     * Writes a message that is never changed, anything the socket will not 
+     * take is queued without copying it.
+     */
+    void writeShared(byte[] message) throws IOException{
+        write(message, 0, message.length, true);
+    }
+    
+    private synchronized void write(byte[] b, int off, int len, boolean shared) throws IOException{
+        if(!channel.isOpen())
+            throw new IOException("channel closed");
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        if(pending.isEmpty()){
+            channel.write(buf);
+            if(!buf.hasRemaining())
+                return;
+            loop.requestWrite(key);
+        }
+        if(pendingBytes + buf.remaining() > MAX_PENDING){
+            channel.close();
+            loop.requestClose(key);//the client leaves its game and the lobby.
+            throw new IOException("client is not reading, pending output limit reached");
+        }
+        if(!shared){//caller may reuse the array, so keep a copy of what is left.
+            ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+            copy.put(buf).flip();
+            buf = copy;
+        }
+        pending.add(buf);
+        pendingBytes += buf.remaining();
+    }
+    
+    /**
+     * Writes queued output, called by the selector thread on OP_WRITE.
+     */
+    synchronized void flushPending() throws IOException{
+        while(!pending.isEmpty()){
+            ByteBuffer buf = pending.peek();
+            pendingBytes -= channel.write(buf);
+            if(buf.hasRemaining())
+                return;//socket is full, wait for the next OP_WRITE
+            pending.poll();
+        }
+        if(key.isValid())
+            key.interestOps(SelectionKey.OP_READ);
+    }
+}
@@ -25,14 +25,18 @@
 
 package Server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
 /**
  * Thread for TCP connection to a client.
+ * In nio mode the same session is driven by a NioServer selector thread 
+ * instead, through handleInput.
  * @author Joel Cranston
  */
 class ClientThread implements Runnable {
@@ -48,48 +52,86 @@ class ClientThread implements Runnable {
     static final char MOVE = 'M';
     static final char HEARTBEAT = 'H';
     static final char QUIT = 'Q'; 
+    static final char CAPABILITIES = 'K'; //K[version], request binary messages.
+    static final char WATCH = 'V';        //V[game], spectate a started game.
+    static final char RESUME = 'U';       //U asks for a resume token, U[token] resumes a session.
+    static final char QUEUE = 'J';        //J[players], join the next matched game.
     
-    //Outgoing Messages
-    static final char WELCOME = 'W';
-    static final String NEWGAME_JOIN = "N0";
-    static final String NEWGAME_CREATE = "N1";
-    static final String NEWGAME_ERROR ="N2";
-    static final String AVAILABLE_GAMES = "A";
-    static final String LOGIN_ERROR = "X1";
+    //Outgoing Messages are in MessageWriter
 
-    private Game game;                  //the clients game           
+    private volatile Game game;         //the clients game           
     private String gamename = null;     //name of game session
+    private volatile Game watching;     //game being spectated
+    private volatile Matchmaker.Ticket ticket; //place in the matchmaking queue
     private String username = null;     //login name of client
-    private Integer state = 0;  //state 0 = waiting for login
+    private String token = null;        //resume token, if the client asked for one.
+    private volatile boolean superseded = false; //a resumed session took over.
+    private boolean closed = false;     //guarded by closeLock.
+    private volatile Integer state = 0;  //state 0 = waiting for login
                                 //state 1 = waiting for connection to game
                                 //state 2 = waiting for another player
                                 //state 3 = waiting for start location
                                 //state 4 = waiting for turn action
                                 //state 5 = game over
-    private PrintWriter out;
-    private BufferedReader in;
+                                //state 6 = spectating
+                                //state 7 = waiting for a match
+    private volatile MessageWriter out; //replaced once if binary is negotiated.
+    private OutputStream rawOut;        //queued socket stream under out.
+    private InputStream in;
+    final MessageDecoder decoder = new MessageDecoder();
+    private final Message message = new Message();
     private final PrintStream debug = System.out;
     private final PrintStream error = System.out;
     
+    static final int HEARTBEAT_WINDOW = 10000; //start sending heartbeats this long before timeout.
+    static final int HEARTBEAT_RETRY = 2000;   //time between unanswered heartbeats.
+    
     private final Integer ConnectionTimeout = GameServer.CONN_TIMEOUT;
-    private Long timeOfLastMessage;
-    private Long timeLeft;
-    private String heartbeatMessage; //string sent to client.
+    private volatile long timeOfLastMessage; //primitive, resetTimer runs on every message.
+    private long timeLeft;
+    private volatile byte[] heartbeatMessage; //string sent to client.
+    private volatile long heartbeatSent;      //System.nanoTime() it was sent.
     private Boolean shutdown;
+    private final ReentrantLock closeLock = new ReentrantLock(); //not synchronized, see MessageWriter.lock
+    private final ReentrantLock lobbyLock = new ReentrantLock(); //keeps lobby versions in order.
+    private long lobbyVersion = -1;     //last lobby version sent.
+    private final TimerWheel.Timeout timer = new TimerWheel.Timeout(){
+        @Override
+        void expire(){//heartbeats and disconnects are not done on the wheel.
+            GameServer.gameExecutor.execute(ClientThread.this::updateTimer);
+        }
+    };
     
     public ClientThread(Socket accept){
         this.client = accept;
         this.timeOfLastMessage = System.currentTimeMillis();
         this.shutdown = false;
+        GameServer.timers.schedule(timer, ConnectionTimeout - HEARTBEAT_WINDOW);
+        GameServer.metrics.connections.increment();
+    }
+    
+    /**
+     * Session for a non-blocking connection, run by the NioServer.
+     * @param accept is the channels socket.
+     * @param outStream is the output stream for the channel.
+     */
+    ClientThread(Socket accept, OutputStream outStream){
+        this(accept);
+        this.rawOut = outStream;
+        this.out = new TextMessageWriter(outStream);
+        out.metrics = GameServer.metrics;
     }
     
     @Override
     public void run(){
-        try(PrintWriter outStream = new PrintWriter(client.getOutputStream(), true);                   
-            BufferedReader inStream = new BufferedReader(new InputStreamReader(client.getInputStream()))
+        try(OutputStream outStream = client.getOutputStream();                   
+            InputStream inStream = client.getInputStream()
             ){
             this.in = inStream;
-            this.out = outStream;
+            //games and timers write from their own threads, they only queue.
+            this.rawOut = new QueuedOutputStream(outStream, client, GameServer.writers);
+            this.out = new TextMessageWriter(rawOut);
+            out.metrics = GameServer.metrics;
             runGame();
             closeConnection();       
         }catch (IOException e){
@@ -99,92 +141,157 @@ class ClientThread implements Runnable {
             }
             //Logger.getLogger(ClientThread.class.getName()).log(Level.SEVERE, null, e);
             error.println("IOException in clientThread, closing thread.");
+            try{//a reset connection still has to leave its game.
+                closeConnection();
+            }catch (IOException ex){
+                //already closed.
+            }
         }finally{
             // make sure this client is removed if from database if this tread exits.
-            GameServer.clientList.remove(this); 
+            GameServer.sessions.remove(this); 
         }
         
     
     }
     private void runGame() throws IOException{ 
-        String inputLine;    
-        // send welcome message
-        out.printf("%c%s\n",WELCOME,GameServer.welcomeMsg);
-        while((inputLine = in.readLine())!=null){ 
-            
-            //debug.println("DEBUG " + username + ": message recieved = "+ inputLine);
-            //debug.println("DEBUG " + username + ": Starting state = "+ state);
-            //ignore blank messages
-            if(inputLine.length() == 0)
-                continue;
-            
-            resetTimer();//reset on every valid message
-            //Client sent quit message.
-            if(inputLine.charAt(0) == QUIT){
-                state = 5;
-            }
-           
-            //Deal with heartbeat messages
-            if(inputLine.charAt(0) == HEARTBEAT ){    
-                if(inputLine.substring(1).equals(heartbeatMessage)){
-                    //client was responding to out message.    
-                }else{
-                    //client is  requesting a responce.
-                    sendHeartbeat(inputLine.substring(1));
-                }      
-            }
-            //reset the connection timer.
-            //all other Messages
-            switch (state) {
-                case 0://wait for login
-                    if(inputLine.charAt(0) == LOGIN){
-                        login(inputLine.substring(1));
-                    }
-                case 1://wait for connection
-                    if(inputLine.charAt(0) == CONNECT ){
-                        connectToGame(inputLine.substring(1));      
-                    }else           
-                    break;   
-                case 2://waiting for more player
-                    //Do not break here, fallthrough to 3 in case it a start message was recieved while in state 2.
-                case 3://wait for starting location
-                    if(inputLine.charAt(0) == START ){
-                          startLocation(inputLine.substring(1));
-                    }
-                    break;
-                case 4://wait for action
-                    if(inputLine.charAt(0) == MOVE){
-                        move(inputLine.substring(1));
-                    }
-                    if(inputLine.charAt(0) == FIRE){
-                        fire(inputLine.substring(1));
-                    }
-                    if(inputLine.charAt(0) == SCAN){
-                        scan(inputLine.substring(1));
-                    }
-                    //if all players have moved.
-                    if(game.ready.get()){
-                        game.sendEOT();//end the turns
-                        game.sendSOT();//start next turn 
-                    }   
-                    break;
-                case 5://game over, Client sent quit message.
-                    debug.printf("%s has logged out\n",username);
-                    //debug.println("DEBUG " + username + ": Server thread exited"); 
-                    return;
-                case 9:
-                    //admin consol
-                    adminConsol(inputLine);
-                default: 
-                    //debug.println("DEBUG " + username + ": Invalid state: " + inputLine);
-            }//end switch (state)
-            //debug.println("DEBUG " + username + ": Ending state = " + state);
+        sendWelcome();
+        while(decoder.readFrom(in)){ 
+            if(!handleInput())
+                return;
         }//end while
         
         //We get here when client closes the connection.
         //debug.println("DEBUG " + username + ": Client Unexpectedly closed the connection");
         //debug.println("DEBUG " + username + ": Final state = " + state);    
-    }  
+    }
+    void sendWelcome(){
+        out.welcome(GameServer.welcomeMsg);
+    }
+    /**
+     * Handles every complete message waiting in the decoders buffer.
+     * @return false once the client has quit.
+     */
+    boolean handleInput() throws IOException{
+        ByteBuffer buffer = decoder.buffer;
+        buffer.flip();
+        try{
+            while(decoder.next(message)){
+                if(!handleMessage(message))
+                    return false;
+            }
+        }finally{
+            buffer.compact();
+        }
+        if(!buffer.hasRemaining())
+            throw new IOException("message too long");
+        return true;
+    }
+    /**
+     * Handles a single message from the client.
+     * @param m is the decoded message.
+     * @return false once the client has quit.
+     */
+    private boolean handleMessage(Message m){
+        //debug.println("DEBUG " + username + ": message recieved = "+ m.type);
+        //debug.println("DEBUG " + username + ": Starting state = "+ state);
+        //ignore blank messages
+        if(m.type == 0)
+            return true;
+        GameServer.metrics.received(m.type);
+        
+        resetTimer();//reset on every valid message
+        //Client sent quit message.
+        if(m.type == QUIT){
+            state = 5;
+        }
+       
+        //Deal with heartbeat messages
+        if(m.type == HEARTBEAT ){    
+            if(m.textEquals(heartbeatMessage)){
+                //client was responding to out message.    
+                GameServer.metrics.heartbeatRtt.record(System.nanoTime() - heartbeatSent);
+            }else{
+                //client is  requesting a responce, echo it back as is.
+                out.heartbeat(m.data, m.textStart, m.textLength);
+            }      
+        }
+        //capability negotiation, only before login.
+        if(m.type == CAPABILITIES && state == 0){
+            negotiate(m.x);
+        }
+        //resume tokens, resume instead of logging in or ask for one after.
+        if(m.type == RESUME){
+            if(state == 0 && m.textLength > 0)
+                resume(m.text());
+            else if(state != 0 && state != 9 && m.textLength == 0)
+                issueToken();
+        }
+        //reset the connection timer.
+        //all other Messages
+        switch (state) {
+            case 0://wait for login
+                if(m.type == LOGIN){
+                    login(m.text());
+                }
+                break;//C, V and J need a username.
+            case 1://wait for connection
+                if(m.type == CONNECT ){
+                    connectToGame(m.text());      
+                }else{
+                    if(m.type == WATCH)
+                        watch(m.text());
+                    if(m.type == QUEUE)
+                        queue(m.x);
+                    break;   
+                }
+            case 2://waiting for more player
+                //Do not break here, fallthrough to 3 in case it a start message was recieved while in state 2.
+            case 3://wait for starting location
+                if(m.type == START ){
+                      startLocation(m.x, m.y);
+                }
+                break;
+            case 4://wait for action
+                if(m.type == MOVE){
+                    move(m.x);
+                }
+                if(m.type == FIRE){
+                    fire(m.x, m.y);
+                }
+                if(m.type == SCAN){
+                    scan(m.x, m.y);
+                }
+                //the game ends the turn once all players have moved.
+                break;
+            case 5://game over, Client sent quit message.
+                debug.printf("%s has logged out\n",username);
+                //debug.println("DEBUG " + username + ": Server thread exited"); 
+                return false;
+            case 9:
+                //admin consol
+                adminConsol(m.type + m.text());
+            default: 
+                //debug.println("DEBUG " + username + ": Invalid state: " + inputLine);
+        }//end switch (state)
+        //debug.println("DEBUG " + username + ": Ending state = " + state);
+        return true;
+    }
+    /**
+     * Cleans up a non-blocking connection, called by the NioServer when the 
+     * client quits or closes the channel.
+     */
+    void channelClosed(){
+        try{
+            if(!shutdown){
+                shutdown = true;
+                closeConnection();
+            }
+        }catch (IOException e){
+            //debug.println("IOException on closeConnection in channelClosed.");
+        }finally{
+            GameServer.sessions.remove(this);
+        }
+    }
     private void login(String message){
             
             username = message;
@@ -193,178 +300,362 @@ class ClientThread implements Runnable {
                 state = 9;
                 return;
             }
-            if(GameServer.userList.contains(username)){
+            if(username.indexOf('#') >= 0){//names with a # are kept for bots.
+                error.println("ERROR: username " + username + " is reserved");
+                out.error(MessageWriter.LOGIN_ERROR);
+                username = null;
+                return;
+            }
+            if(!GameServer.sessions.claim(username, this)){
                 error.println("ERROR: username " + username + " allready in use");
-                out.printf("%s\n",LOGIN_ERROR);
+                out.error(MessageWriter.LOGIN_ERROR);
                 username = null;
                 return;
             }
-            GameServer.userList.add(username);
             debug.printf("New user %s logged in\n",username);
-            sendGameList();//send client gamelist.
             state = 1;      
+            GameServer.lobby.subscribe(this);//send client gamelist, and any changes to it.
     }
-    private void connectToGame(String message){  
-        gamename = message;
-        //Make sure its not a currently active gameName
-        if(GameServer.activeGames.containsKey(gamename)){
-            out.printf("%s\n",NEWGAME_ERROR);
+    private void issueToken(){
+        if(token == null)
+            token = GameServer.sessions.issue(username, this);
+        out.resume(token);
+    }
+    //takes over a dropped session, and its place in a game.
+    private void resume(String t){
+        SessionRegistry.Resume r = GameServer.sessions.redeem(t, this);
+        if(r == null){
+            out.error(MessageWriter.RESUME_ERROR);
+            return;
+        }
+        username = r.username;
+        debug.printf("%s resumed their session\n",username);
+        state = 1;
+        issueToken();//a token is only good once.
+        Game g = r.game;
+        if(g == null){
+            GameServer.lobby.subscribe(this);
             return;
         }
+        game = g;
+        gamename = g.name;
+        state = 2;
+        g.reattach(username, out, this);//replies like join, through resumed or joinFailed.
+    }
+    /**
+     * Called when a resumed session has taken over from this one, closes 
+     * this connection without leaving the game.
+     * @return the game this session was playing in, null if none.
+     */
+    Game supersede(){
+        int s = state;
+        Game g = s >= 2 && s <= 4 ? game : null;
+        superseded = true;
+        disconnect();
+        return g;
+    }
+    private void connectToGame(String message){  
+        gamename = message;
+        //an active game only takes back players whose slot it is holding.
+        Game g = GameServer.activeGames.get(gamename);
         //Check to see if gameName is in gamelist
-        if(GameServer.gameList.containsKey(gamename)){
-            //if gameName is in gamelist 
-            game = GameServer.gameList.get(gamename);
-            game.addclient(username, client);
-            out.printf("%s\n",NEWGAME_JOIN);
-            //see if we still need more players
-            if(game.ready.get()){
-                state = 3;//game is ready
-                //Move game to Active games list
-                GameServer.activeGames.put(gamename, game);
-                GameServer.gameList.remove(gamename);
-                //Send newGame message to all clients in game.
-                game.sendSOG();
-                debug.printf("Game (%s) is starting\n",gamename);
-            }else{
-                state = 2;//need more players
-                debug.printf("%s has joined (%s)\n",username,gamename);
+        if(g == null)
+            g = GameServer.gameList.get(gamename);
+        if(g == null){
+            //create a new game,register it in gamelist unless someone beat us to it
+            Game created = new Game(gamename, GameServer.players, GameServer.HP, 
+                    GameServer.SCAN_DISTANCE, GameServer.HIT_DAMAGE, GameServer.SCAN_NEAR_SHIP,
+                    GameServer.turnTime, GameServer.boardSize);
+            g = GameServer.gameList.putIfAbsent(gamename, created);
+            if(g == null){
+                g = created;
+                GameServer.lobby.gameAdded(gamename);
             }
-        }else{
-            //create a new game,register it in gamelist 
-            game = new Game(gamename, GameServer.PLAYERS, GameServer.HP, 
-                    GameServer.SCAN_DISTANCE, GameServer.HIT_DAMAGE, GameServer.SCAN_NEAR_SHIP);
-            GameServer.gameList.put(gamename, game);
-            game.addclient(username, client);
+        }
+        game = g;
+        state = 2;//need more players, the game moves us on with B.
+        leaveLobby();
+        //the game replies N0/N1, or N2 and joinFailed if it filled up first.
+        g.join(username, out, this);
+    }
+    private void queue(int players){
+        if(players < 2)//no size asked for.
+            players = GameServer.players;
+        players = Math.min(players, Game.MAX_ROYALE);
+        state = 7;
+        leaveLobby();
+        ticket = GameServer.matchmaker.enqueue(this, players);
+        debug.printf("%s is waiting for a %d player match\n",username,players);
+    }
+    /**
+     * Called by the matchmaker, joins the matched game.
+     * @return false if the client has already disconnected.
+     */
+    boolean matched(Game g){
+        closeLock.lock();
+        try{//the join is posted before any clientDisconnected from closeConnection.
+            if(closed)
+                return false;
+            ticket = null;
+            game = g;
+            gamename = g.name;
             state = 2;
-            resendGameList();
-            //send newGame message
-            out.printf("%s\n",NEWGAME_CREATE);
-            debug.printf("%s Created a new game (%s)\n",username,gamename);                            
+            g.join(username, out, this);
+            return true;
+        }finally{
+            closeLock.unlock();
         }
     }
-    private void startLocation(String message){
-        Integer[] coordinates = getCoordinates(message.charAt(0),message.charAt(1));
-        if(coordinates != null){
-            game.setStart(username,coordinates[0],coordinates[1]);
+    /**
+     * @return the session state, see the state field.
+     */
+    int state(){
+        return state;
+    }
+    /**
+     * Called by the game when a join could not be run, puts the client back 
+     * in the lobby.
+     */
+    void joinFailed(){
+        game = null;
+        gamename = null;
+        state = 1;
+        GameServer.lobby.subscribe(this);
+    }
+    /**
+     * Called by the game when it gave the client back its held slot.
+     * @param placed is true if the client already has a start location.
+     */
+    void resumed(boolean placed){
+        if(placed)
             state = 4;
-        }else{
-            error.println("ERROR: invalid cordinates: " + message);
+    }
+    /**
+     * Called by the game when it picked a start location for this client 
+     * at the deadline, its turn actions are taken from now on.
+     */
+    void placed(){
+        int s = state;
+        if(s == 2 || s == 3)
+            state = 4;
+    }
+    private void watch(String name){
+        Game g = GameServer.activeGames.get(name);
+        if(g == null){//only started games can be watched
+            out.newGame(MessageWriter.NEWGAME_ERROR);
+            return;
         }
-        if(game.ready.get()){
-            
-            game.sendSOT(); //all players have set their start location
-                            //ready to start turns.
-            resendGameList();//remove it from avalible games
+        watching = g;
+        state = 6;
+        leaveLobby();
+        g.watch(this);//replies through watchResult
+        debug.printf("%s is watching (%s)\n",username,name);
+    }
+    /**
+     * Called by the game with the result of a watch request.
+     */
+    void watchResult(boolean watched){
+        if(watched)
+            out.newGame(MessageWriter.NEWGAME_WATCH);
+        else{
+            out.newGame(MessageWriter.NEWGAME_ERROR);
+            stopWatching();
         }
     }
-    private void move(String dir){
-        Integer moveDir = Integer.parseInt(dir);
+    void watchUpdate(Game.Summary summary){
+        out.board(summary);
+    }
+    /**
+     * Called by the game when it ends, the spectator goes back to the lobby.
+     */
+    void watchEnded(){
+        out.endOfGame(false);
+        stopWatching();
+    }
+    private void stopWatching(){
+        watching = null;
+        state = 1;
+        GameServer.lobby.subscribe(this);
+    }
+    //game is read once, it can be cleared by the game thread while we handle a message.
+    private void startLocation(int x, int y){
+        Game g = game;
+        if(g == null)
+            return;
+        if(validCoordinates(g, x, y)){
+            g.setStart(username,x,y);//the game starts the turns once all are set.
+            state = 4;
+        }else{
+            error.println("ERROR: invalid cordinates: " + x + "," + y);
+        }
+    }
+    private void move(int moveDir){
+        Game g = game;
+        if(g == null)
+            return;
         if(moveDir > 0 && moveDir < 10 && moveDir != 5)//0,5 are invalid.
-            game.move(username, moveDir);
+            g.move(username, moveDir);
         else
-            error.println("ERROR: invalid move direction: " + dir);
+            error.println("ERROR: invalid move direction: " + moveDir);
     }
-    private void fire(String target){
-        Integer[] coordinates = getCoordinates(target.charAt(0),target.charAt(1));
-        if(coordinates != null){
-            game.fire(username, coordinates[0], coordinates[1]);
+    private void fire(int x, int y){
+        Game g = game;
+        if(g == null)
+            return;
+        if(validCoordinates(g, x, y)){
+            g.fire(username, x, y);
 
         }else
-             error.println("ERROR: invalid cordinates: " + target);
+             error.println("ERROR: invalid cordinates: " + x + "," + y);
+    }
+    private void scan(int x, int y){
+        Game g = game;
+        if(g == null)
+            return;
+        if(validCoordinates(g, x, y)){
+            g.scan(username, x, y);      
+        }else
+             error.println("ERROR: invalid cordinates: " + x + "," + y);        
     }
-    private void scan(String target){
-        Integer[] cords = getCoordinates(target.charAt(0),target.charAt(1));
-        if(cords != null){
-            game.scan(username, cords[0], cords[1]);      
+    //switch to binary messages if the client asked for a version we speak.
+    private void negotiate(int version){
+        if(version == BinaryMessageWriter.VERSION){
+            out.capabilities(version);//last text message
+            out = new BinaryMessageWriter(rawOut);
+            out.metrics = GameServer.metrics;
+            decoder.setBinary(true);
         }else
-             error.println("ERROR: invalid cordinates: " + target);        
+            out.capabilities(0);//stay with text
     }
     //Removes the user and game from the databases
-    private synchronized void closeConnection() throws IOException{
-        if(game != null){
-            game.clientDisconnected(username);//removes client from the game, and ends it if it can not continue.
-            //if nobody is connected remove the game from the databases
-            if(game.currentPlayers == 0){ //after removing our client
-                GameServer.gameList.remove(gamename);
-                GameServer.activeGames.remove(gamename); 
-                resendGameList();
-                debug.printf("Removing (%s)\n",gamename);
-            }       
+    private void closeConnection() throws IOException{
+        closeLock.lock();
+        try{
+            if(closed)
+                return;
+            closed = true;
+            GameServer.timers.cancel(timer);
+            GameServer.lobby.unsubscribe(this);
+            Game watched = watching;
+            if(watched != null)
+                watched.unwatch(this);
+            Matchmaker.Ticket queued = ticket;
+            if(queued != null)
+                queued.cancelled = true;
+            boolean held = false;
+            Game g = game;
+            if(g != null && !superseded){
+                int s = state;
+                if(token != null && s >= 2 && s <= 4 && GameServer.sessions.hold(token, g)){
+                    //dropped, not quit, keep the slot for a resume.
+                    g.clientDropped(username, out);
+                    held = true;
+                }else
+                    //removes client from the game, ends it if it can not continue 
+                    //and removes it from the databases once nobody is left.
+                    g.clientDisconnected(username);
+            }
+            if(!held){
+                GameServer.sessions.revoke(token);
+                GameServer.sessions.release(username, this);
+            }
+            //debug.println("DEBUG: removing " + username + " from user database");
+            client.close();
+        }finally{
+            closeLock.unlock();
         }
-        //GameServer.clientList.remove(this); 
-        GameServer.userList.remove(username);
-        //debug.println("DEBUG: removing " + username + " from user database");
-        client.close();
-    }
-    private void sendGameList(){
-        StringBuilder games = new StringBuilder(AVAILABLE_GAMES);
-        //System.out.println(games.toString());
-        for(String i:GameServer.gameList.keySet()){
-            games.append(i);
-            games.append(':');    
+    }
+    /**
+     * Sends a lobby version if this client is still in the lobby and has 
+     * not already seen it.
+     * @param snapshot is the full list.
+     * @param delta is the change from the previous version, may be null.
+     */
+    void lobbyUpdate(Lobby.Snapshot snapshot, Lobby.Delta delta){
+        lobbyLock.lock();
+        try{
+            if(state != 1 || snapshot.version <= lobbyVersion)
+                return;
+            out.gameList(snapshot, delta, lobbyVersion);
+            lobbyVersion = snapshot.version;
+        }finally{
+            lobbyLock.unlock();
         }
-        if(games.length() > 1)
-            games.deleteCharAt(games.length()-1);//remove last colon
-        ///System.out.println(games.toString());
-        out.printf("%s\n",games.toString());
-            
     }
-    //sends game list to all users in state 1
-    private void resendGameList(){
-        for(ClientThread c: GameServer.clientList)
-            if (c.state == 1)
-                c.sendGameList();            
-    }
-    private Integer[] getCoordinates(char a, char b){
-        Integer x = Integer.parseInt(new Character(a).toString());
-        Integer y = Integer.parseInt(new Character(b).toString());
-        if(x <= 9 && x >= 0 && y <= 9 && y >= 0){
-            return new Integer[]{x,y};
+    //stops lobby updates, call after leaving state 1. A client that comes 
+    //back to the lobby is sent the whole list again.
+    private void leaveLobby(){
+        GameServer.lobby.unsubscribe(this);
+        lobbyLock.lock();
+        try{
+            lobbyVersion = -1;
+        }finally{
+            lobbyLock.unlock();
         }
-        else
-            return null;       
     }
-    //check the timer and send a heartbeat message to the client if needed
-    //this must be run by a non-blocking thread.
+    private static boolean validCoordinates(Game g, int x, int y){
+        return x >= 0 && y >= 0 && x < g.size && y < g.size;
+    }
+    //check the timer and send a heartbeat message to the client if needed.
+    //Handed off by the timer wheel when this connection could be near its timeout.
+    //Messages only move timeOfLastMessage, so if one arrived since this was 
+    //scheduled it just reschedules for the new deadline.
     void updateTimer(){           
-        Long time = System.currentTimeMillis();
+        if(shutdown)
+            return;
+        long time = System.currentTimeMillis();
         timeLeft = ConnectionTimeout - (time - timeOfLastMessage); //timeout - (elapsed time)
         
-        //send heartbeat when less then 10 seconds is remaining before timeout.
-        if ( timeLeft < 10000){
-            heartbeatMessage = username + time.toString();
-            sendHeartbeat(heartbeatMessage);
-            //debug.printf("DEBUG: sending %s a HB message: %s\n",username,heartbeatMessage);
-        } 
-        
         //disconnect non-responding clients.
         if(timeLeft < 0){
-            try{
-                debug.printf("Disconnected user %s, for inactivity\n", username);
-                shutdown = true;                
-                closeConnection();
-                in.close(); // clientThread is blocked on read, so close the buffered reader. 
-                            //This will cause it to exit with an ioexceptionx
-            }catch (IOException e){
-                //debug.println("IOException on closeConnection in updateTimer.");
-            }     
+            debug.printf("Disconnected user %s, for inactivity\n", username);
+            disconnect();
+            return;
         }
+        
+        //send heartbeat when less then 10 seconds is remaining before timeout.
+        if ( timeLeft < HEARTBEAT_WINDOW){
+            String hb = username + time;
+            heartbeatMessage = hb.getBytes(StandardCharsets.UTF_8);
+            heartbeatSent = System.nanoTime();
+            sendHeartbeat(hb);
+            //debug.printf("DEBUG: sending %s a HB message: %s\n",username,heartbeatMessage);
+            GameServer.timers.schedule(timer, Math.min(HEARTBEAT_RETRY, timeLeft + 1));
+        }else
+            GameServer.timers.schedule(timer, timeLeft - HEARTBEAT_WINDOW);
         //debug.printf("DEBUG: %s updating timer, %d milliseconds remaining\n",username,timeLeft);
     }
+    //closes the connection from another thread.
+    private void disconnect(){
+        try{
+            shutdown = true;                
+            closeConnection();
+            if(in != null)
+                in.close(); // clientThread is blocked on read, so close the input stream. 
+                            //This will cause it to exit with an ioexceptionx
+            else //nio connection, no thread to clean up after us.
+                GameServer.sessions.remove(this);
+        }catch (IOException e){
+            //debug.println("IOException on closeConnection in disconnect.");
+        }     
+    }
     //Sets time of last message to current time.
+    //Cheap enough for every message, the timer wheel entry picks up the 
+    //new deadline the next time it fires.
     void resetTimer(){
         //debug.printf("DEBUG %s reseting timer\n",username);
         timeOfLastMessage = System.currentTimeMillis();
         //timeLeft = ConnectionTimeout.longValue();
     }      
     void sendHeartbeat(String hbMessage){
-        out.printf("%c%s\n",HEARTBEAT,hbMessage);
+        out.heartbeat(hbMessage);
     }
     
     //special operations for administration client
     private void adminConsol(String message) {    
         if(message.equals("Shutdown"))
             GameServer.shutdown = true;
+        else if(message.equals("Metrics"))
+            GameServer.metrics.snapshot().print(debug);
     }
 }
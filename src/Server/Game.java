@@ -24,49 +24,135 @@
 
 package Server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 /**
  * Holds a game instance.
+ * 
+ * Each game is a single threaded actor. ClientThreads post their actions to 
+ * the games mailbox and return, the actions are run one at a time on 
+ * GameServer.gameExecutor, so the game state needs no locks. Methods that 
+ * are not public must only be called from the games own actions. Messages 
+ * to players are only queued on their connection, so a client that stops 
+ * reading never holds up a game thread.
+ * 
+ * Player state is kept in parallel primitive arrays indexed by a slot 
+ * given out on join. A player who leaves has their slot tombstoned, cleared 
+ * from the live set, rather than the arrays being rebuilt.
+ * 
+ * Games of MAXPLAYERS or more are battle royales. They share one encoded 
+ * roster of every player at the start, and encode the end of each turn on 
+ * several cores once there are PARALLEL_EOT players.
+ * 
+ * Spectators watching a started game get a summary of the board after the 
+ * start locations are set and after every turn, encoded once per format 
+ * and written as the same bytes to each of them.
+ * 
+ * Every event is also queued to GameServer.journal under the games id. 
+ * A game rebuilt from a snapshot and the journal after a crash holds each 
+ * players slot for GRACE, they get it back by connecting to the game again. 
+ * So does a game whose player dropped while holding a resume token, until 
+ * they resume their session on a new connection.
  *
  * @author Joel Cranston
  */
 public class Game {
     //Constants
-    static final int MAXPLAYERS = 9;
+    static final int MAXPLAYERS = 9;    //regular games have fewer players than this.
+    static final int MAX_ROYALE = 4096; //most players in a battle royale.
+    static final int PARALLEL_EOT = 256;//players before EOT is split across cores.
+    static final int EOT_CHUNK = 64;    //slots encoded by each parallel task.
     static final Integer MAX_HP = 9;    
-    //static private final PrintStream debug = System.out;
+    static final int MAX_BOARD = 1 << 20; //largest board side.
+    static final int BATCH = 64; //max actions run before yielding the executor thread.
+    static final long NOWHERE = -1; //position of a player without a start location.
+    static final int GRACE = 60000; //milliseconds a held slot waits for its player.
+    static final MessageWriter AWAY = //discards messages to players who are not connected.
+            new TextMessageWriter(OutputStream.nullOutputStream());
+    static private final PrintStream debug = System.out;
     static private final PrintStream error = System.out;
-    //Messages
-    static final String START_OF_GAME = "B";
-    static final String START_OF_TURN = "T"; 
-    static final String END_OF_GAME_WIN = "O1";
-    static final String END_OF_GAME_LOSE = "O0";
-    static final String END_OF_TURN = "E";
+    //Messages are encoded by each clients MessageWriter
 
     //Game state info
     final Integer hp;//starting hit points
     final String name;
-    AtomicInteger state; //game states  
+    final long id;          //identifies the game in the journal.
+    int state = 1;       //game states  
                          // 1: no clients yet.
                          // 2: waitig for additional players
                          // 3: all clients connected, wait for start loc.
                          // 4: waiting for turn actions.
                          // 5: game over.
     int nPlayers;   // number of players needed to start game.
-    int currentPlayers = 0;    //needs to be protected
+    int currentPlayers = 0;    //only changed by the games actions
     final int damagePerHit;
     final Boolean scanNearShip;
     final int scanDistance;
-    AtomicBoolean ready; //used to signal that all clients have finished a required action.
-    //Database
-    Client[] clients;
+    final int turnTime;     //milliseconds players get to act, 0 waits forever.
+    final int size;         //the board is size x size squares.
+    final boolean royale;   //MAXPLAYERS or more players.
+    private long deadlineAt = 0; //System.nanoTime() the current phase ends, 0 if none.
+    private long turnStarted = 0;//System.nanoTime() of the last SOT, 0 before the first.
+    //Fires on the shared timer wheel, the check itself runs as a game action.
+    private final TimerWheel.Timeout deadline = new TimerWheel.Timeout(){
+        @Override
+        void expire(){
+            post(Game.this::deadlinePassed);
+        }
+    };
+    boolean ready = false; //used to signal that all clients have finished a required action.
+    //Mailbox, any thread may post, only one drain runs at a time.
+    private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable drain = this::drain;
+    //Fires when the first held slot runs out of time.
+    private final TimerWheel.Timeout grace = new TimerWheel.Timeout(){
+        @Override
+        void expire(){
+            post(Game.this::graceExpired);
+        }
+    };
+    
+    //Database, one entry per slot.
+    private final Map<String,Integer> slots = new HashMap<>(); //username to slot
+    private final BitSet live;          //slots holding a player.
+    private final String[] names;
+    private final MessageWriter[] outs; //output stream to each client.
+    private final ClientThread[] owners;//session of each client, null for bots and held slots.
+    private final int[] hitPoints;      //stored and sent as number of hits survivable, -1 is dead.
+    private final long[] positions;     //x << 32 | y, NOWHERE until a start location is set.
+    private final int[] nextInSquare;   //next slot in the same board square, -1 for none.
+    private final BitSet moved;         //acted this turn.
+    private final BitSet wasHit;        //shot hit this turn.
+    private final BitSet scanned;       //scanned this turn.
+    private final BitSet away;          //held for a player who has not reconnected.
+    private final long[] awayUntil;     //System.currentTimeMillis() each held slot is given up.
+    private final int[] scanHits;       //x,y pairs detected this turn, scanStride ints per slot.
+    private final int[] scanCounts;     //pairs in each slots scanHits.
+    private final int scanStride;
+    private int movedCount = 0;         //live slots in moved.
+    private int turn = 0;               //turns played.
+    private final Set<ClientThread> spectators = ConcurrentHashMap.newKeySet();
+    //Occupied squares, the players in each square linked through 
+    //nextInSquare. Kept up to date by setStart and move so scan and 
+    //fire only look at the squares they cover.
+    private final Squares board;
 
 
     /**
@@ -77,138 +163,351 @@ public class Game {
      * @param scanDist is the distance from a point that enemies will be detected.
      * @param hitDmg is the number of hit points removed for each hit.
      * @param scanNear is true if players always scan around their location.
+     * @param turnTime is the milliseconds each player has to act, 0 for no limit.
+     * @param size is the width and height of the board.
      */
-    public Game(String name, int players, int hp, int scanDist, int hitDmg, boolean scanNear) {
+    public Game(String name, int players, int hp, int scanDist, int hitDmg, boolean scanNear,
+            int turnTime, int size) {
+        this(GameServer.journal.newGameId(), name, players, hp, scanDist, hitDmg, scanNear, 
+                turnTime, size);
+    }
+    
+    //a game with a known id, when restoring.
+    Game(long id, String name, int players, int hp, int scanDist, int hitDmg, boolean scanNear,
+            int turnTime, int size) {
+        this.id = id;
         this.name = name;
-        state = new AtomicInteger(1);
-        ready = new AtomicBoolean(false);
-        if(players > 1 && players < MAXPLAYERS)
+        if(players > 1 && players <= MAX_ROYALE)
             this.nPlayers = players;
         else
             this.nPlayers = 2;
+        this.royale = nPlayers >= MAXPLAYERS;
         if(hp <= 9)//max of one digit.
             this.hp = hp;
         else 
             this.hp = MAX_HP;
-        //create a array to hold the client/socket pairs.
-        this.clients = new Client[nPlayers];        
         //optional rules.
         this.scanNearShip = scanNear;
         this.damagePerHit = hitDmg;
         this.scanDistance = scanDist;
+        this.turnTime = Math.max(0, turnTime);
+        this.size = Math.max(1, Math.min(MAX_BOARD, size));
+        //create the player arrays, sized once for the whole game.
+        int n = nPlayers;
+        live = new BitSet(n);
+        names = new String[n];
+        outs = new MessageWriter[n];
+        owners = new ClientThread[n];
+        hitPoints = new int[n];
+        positions = new long[n];
+        nextInSquare = new int[n];
+        moved = new BitSet(n);
+        wasHit = new BitSet(n);
+        scanned = new BitSet(n);
+        away = new BitSet(n);
+        awayUntil = new long[n];
+        //a scan can't find more squares than there are other players, or 
+        //than the two areas it covers.
+        long area = (2L * scanDistance + 1) * (2L * scanDistance + 1) * 2;
+        scanStride = (int)Math.min(n - 1, area) * 2;
+        scanHits = new int[n * scanStride];
+        scanCounts = new int[n];
+        this.board = new Squares(n);
             
         }
     
-    //Stores info about each client 
-    private static class Client {
-        String username;
-        //java.net.Socket socket;
-        AtomicInteger hp;   // hp is stored and sent as number of hits survivable, -1 is dead. 
-                            // this must be atomic, as multiple ClientThreads could update it.
-        PrintWriter out;    // output stream to client.
-        Boolean wasHit = false;
-        Pair position;
-        Pair[] scanHits;
-        AtomicBoolean moved;
-        public Client(String name, Socket s, Integer hp) {
-            this.username = name;
-            //this.socket = s;
-            this.hp = new AtomicInteger(hp);
-            this.moved = new AtomicBoolean(false);
+    /**
+     * Every players name, pre-encoded once so a battle royale start is one 
+     * shared message rather than a roster per player. Clients skip their 
+     * own name. A big roster goes in an extended binary frame.
+     */
+    static class Roster {
+        final byte[] text;
+        final byte[] binary;
+        Roster(String[] players){
+            ByteArrayOutputStream t = new ByteArrayOutputStream();
+            new TextMessageWriter(t).startOfGame(players);
+            this.text = t.toByteArray();
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            new BinaryMessageWriter(b).startOfGame(players);
+            this.binary = b.toByteArray();
+        }
+    }
+    
+    /**
+     * A board summary for spectators, pre-encoded.
+     */
+    static class Summary {
+        final byte[] text;
+        final byte[] binary;
+        Summary(int turn, String[] names, int[] players, int count){
+            ByteArrayOutputStream t = new ByteArrayOutputStream();
+            new TextMessageWriter(t).board(turn, names, players, count);
+            this.text = t.toByteArray();
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            new BinaryMessageWriter(b).board(turn, names, players, count);
+            this.binary = b.toByteArray();
+        }
+    }
+    
+    //Sparse board, maps the key (y * size + x) of each occupied square to the 
+    //first slot in it. Open addressing with linear probing, sized so it is 
+    //never more than half full, so memory depends on the players not the 
+    //board and a lookup is O(1) however big the board is.
+    private static class Squares {
+        private static final long EMPTY = -1;
+        private final long[] keys;
+        private final int[] heads;
+        private final int mask;
+        
+        Squares(int players){
+            int capacity = Integer.highestOneBit(Math.max(4, players) * 2 - 1) * 2;
+            keys = new long[capacity];
+            heads = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+        //first slot in the square, or -1 if it is empty.
+        int get(long key){
+            for(int i = hash(key); keys[i] != EMPTY; i = (i + 1) & mask)
+                if(keys[i] == key)
+                    return heads[i];
+            return -1;
+        }
+        void put(long key, int head){
+            int i = hash(key);
+            while(keys[i] != EMPTY && keys[i] != key)
+                i = (i + 1) & mask;
+            keys[i] = key;
+            heads[i] = head;
+        }
+        void remove(long key){
+            int i = hash(key);
+            while(keys[i] != key){
+                if(keys[i] == EMPTY)
+                    return;
+                i = (i + 1) & mask;
+            }
+            //shift back later entries of the probe run so lookups don't stop early.
+            for(int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask){
+                int home = hash(keys[j]);
+                if(((j - home) & mask) >= ((j - i) & mask)){
+                    keys[i] = keys[j];
+                    heads[i] = heads[j];
+                    i = j;
+                }
+            }
+            keys[i] = EMPTY;
+        }
+        private int hash(long key){
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int)(h ^ (h >>> 32)) & mask;
+        }
+    }
+    
+    /**
+     * Queues an action to run on the game. Never blocks, the action runs 
+     * after every action posted before it.
+     * @param action is run with exclusive access to the game state.
+     */
+    void post(Runnable action){
+        mailbox.offer(action);
+        if(scheduled.compareAndSet(false, true))
+            GameServer.gameExecutor.execute(drain);
+    }
+    
+    //Runs queued actions, yields after BATCH so one busy game can't starve the others.
+    private void drain(){
+        Runnable action;
+        int n = 0;
+        while(n++ < BATCH && (action = mailbox.poll()) != null){
             try{
-                this.out = new PrintWriter(s.getOutputStream(), true);
-            }catch(IOException e){
-                error.println("exception seting up printwriter in Client.");
+                action.run();
+            }catch(RuntimeException e){
+                error.println("ERROR: game (" + name + ") action failed: " + e);
             }
         }
+        scheduled.set(false);
+        //something may have been posted after the last poll.
+        if(!mailbox.isEmpty() && scheduled.compareAndSet(false, true))
+            GameServer.gameExecutor.execute(drain);
     }
     
-    //Just a set of comparable x,y cordinates
-    private static class Pair implements Comparable<Pair>{
-        Integer x;
-        Integer y;
-        public Pair(Integer x, Integer y){
-            this.x = x;
-            this.y = y;
+    /**
+     * Adds a client to the game, and starts the game once it is full.
+     * The client is sent N1 if it created the game, N0 if it joined, 
+     * or N2 if the game was full or closed before the join was run.
+     * @param name is the clients username.
+     * @param out is the clients output stream.
+     * @param owner is told if the join failed, may be null.
+     */
+    public void join(String name, MessageWriter out, ClientThread owner){
+        post(() -> addclient(name, out, owner));
+    }
+    
+    private void addclient(String name, MessageWriter out, ClientThread owner){
+        Integer held = slots.get(name);
+        if(held != null && away.get(held)){
+            rejoin(held, out, owner);
+            return;
         }
-        @Override
-        public int compareTo(Pair other){
-            int last = this.x.compareTo(other.x);
-            return last == 0 ? this.y.compareTo(other.y) : last;
+        if(state > 2 || currentPlayers == nPlayers || slots.containsKey(name)){
+            error.println("Someone tried to add a client '" + name + "' to a full game.");
+            out.newGame(MessageWriter.NEWGAME_ERROR);
+            if(owner != null)
+                owner.joinFailed();
+            return;
         }
+        state = 2;
+        int slot = live.nextClearBit(0);//reuse the slot of anyone who left.
+        occupy(slot, name, out);
+        owners[slot] = owner;
+        if(currentPlayers == 1){
+            GameServer.journal.log(Journal.CREATED, id, this.name, nPlayers, hp, scanDistance, 
+                    damagePerHit, scanNearShip ? 1 : 0, turnTime, size);
+            out.newGame(MessageWriter.NEWGAME_CREATE);
+            debug.printf("%s Created a new game (%s)\n",name,this.name);
+        }else{
+            out.newGame(MessageWriter.NEWGAME_JOIN);
+            debug.printf("%s has joined (%s)\n",name,this.name);
+        }
+        GameServer.journal.log(Journal.JOIN, id, name, slot);
+        if(currentPlayers == nPlayers)//we have enough players
+            startGame();
+    }
+    private void startGame(){
+        //Move game to Active games list
+        GameServer.activeGames.put(this.name, this);
+        if(GameServer.gameList.remove(this.name, this))
+            GameServer.lobby.gameRemoved(this.name);
+        ready = true;//ready to sendSOG
+        sendSOG();
+        debug.printf("Game (%s) is starting\n",this.name);
     }
     
     /**
-     * Adds a client to the game.
-     * @param name is the clients username.
-     * @param s is the clients connection socket.
+     * Called by the matchmaker after posting its players joins. If one of 
+     * them left before joining, the game starts with the rest, or is listed 
+     * in the lobby if only one is left.
      */
-    public synchronized void addclient(String name, Socket s){
-        state.compareAndSet(1, 2);
-        if(!ready.get()){
-            clients[currentPlayers++] = new Client(name,s,hp);
-            if(currentPlayers == nPlayers){//we have enough players
-                ready.set(true);//ready to sendSOG
-                state.set(3);//waiting for start positions.
+    void startMatch(){
+        post(() -> {
+            if(state == 1){//nobody joined, give back the name the matchmaker reserved.
+                state = 5;
+                GameServer.gameList.remove(name, this);
+                return;
             }
-        }else //log error
-            error.println("Someone tried to add a client '" + name + "' to a full game.");
+            if(state != 2)//started, or everyone left.
+                return;
+            if(currentPlayers >= 2){
+                if(nPlayers != currentPlayers)//recovery has to start it at this size too.
+                    GameServer.journal.log(Journal.MATCHED, id, currentPlayers);
+                nPlayers = currentPlayers;
+                startGame();
+            }else if(GameServer.gameList.get(name) == this)//reserved, but not listed yet.
+                GameServer.lobby.gameAdded(name);
+        });
+    }
+    private void occupy(int slot, String name, MessageWriter out){
+        live.set(slot);
+        slots.put(name, slot);
+        names[slot] = name;
+        outs[slot] = out;
+        hitPoints[slot] = hp;
+        positions[slot] = NOWHERE;
+        nextInSquare[slot] = -1;
+        currentPlayers++;
+    }
+    //gives a player their held slot back, and catches them up on the game.
+    private void rejoin(int slot, MessageWriter out, ClientThread owner){
+        away.clear(slot);
+        outs[slot] = out;
+        owners[slot] = owner;
+        if(owner != null)
+            owner.resumed(positions[slot] != NOWHERE);
+        out.newGame(MessageWriter.NEWGAME_JOIN);
+        if(state >= 3)
+            sendRoster(slot);
+        if(state == 4 && !moved.get(slot))
+            out.startOfTurn(hitPoints[slot]);
+        debug.printf("%s has rejoined (%s)\n",names[slot],this.name);
     }
 
     /**
      * Sends start of game message to all clients if game is ready.
      * 
      */
-    public void sendSOG(){     
-        if(ready.get()){ //we have enough players
-            StringBuilder players;            
-            for(int i = 0; i < clients.length; i++){
-                //find the names of the other players
-                int playersAdded = 0;
-                players = new StringBuilder();
-                for(int j = 0; j < clients.length;j++){
-                    if(i != j){// all usernames except current users
-                        players.append(clients[j].username);
-                        if(++playersAdded < nPlayers - 1)
-                            players.append(':');         
-                    }         
-                }//send the SOG message
-                clients[i].out.printf("%s%s\n",START_OF_GAME,players.toString());  
-            }
-            state.set(3);//waiting for startLocations
-            ready.set(false);
+    void sendSOG(){     
+        if(ready && royale){//one roster for everyone
+            Roster roster = new Roster(players(-1));
+            for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+                outs[i].startOfGame(roster);
+            state = 3;//waiting for startLocations
+            ready = false;
+            startDeadline();
+        }else if(ready){ //we have enough players
+            for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+                sendRoster(i);
+            state = 3;//waiting for startLocations
+            ready = false;
+            startDeadline();
         }else //log error
             error.println("ERROR: Someone tried to start game '" + name + "'before it was ready");         
     }
+    //sends one player the start of game message.
+    private void sendRoster(int slot){
+        if(royale)
+            outs[slot].startOfGame(new Roster(players(-1)));
+        else
+            outs[slot].startOfGame(players(slot));
+    }
+    //the names of the players, except the one in slot skip.
+    private String[] players(int skip){
+        String[] players = new String[skip >= 0 && live.get(skip) ? currentPlayers - 1 : currentPlayers];
+        int n = 0;
+        for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+            if(i != skip)
+                players[n++] = names[i];
+        return players;
+    }
     
     /**
      * Send the clients a StartOfTurn message if they are still alive.
      * Removes eliminated players from the game.
      * only valid in (state 4)
      */
-    public synchronized void sendSOT(){
-        if(ready.get()){//all clients have responded.
+    void sendSOT(){
+        if(ready){//all clients have responded.
             //Remove elimenated clients
-            for(Client i: clients){
-                if (i.hp.get() < 0){
-                    i.out.printf("%s\n",END_OF_GAME_LOSE);
-                    removeClient(i.username);
+            for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)){
+                if (hitPoints[i] < 0){
+                    GameServer.journal.log(Journal.ELIMINATED, id, i);
+                    outs[i].endOfGame(false);
+                    removeSlot(i);
                 }
             }
+        
+            if(currentPlayers > 1){//send remaining clients a start of turn message.
+                turn++;
+                GameServer.journal.log(Journal.TURN, id, turn);
+                moved.clear();//reset moved flags.
+                movedCount = 0;
+                for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+                    outs[i].startOfTurn(hitPoints[i]);
+                turnStarted = System.nanoTime();
+                ready = false;//wait for all players to move.
+                startDeadline();
             
-            if(clients.length > 1){//send remaining clients a start of turn message.
-                for(Client i: clients){
-                    i.moved.set(false);//reset moved flag.
-                    i.out.printf("%s%d\n",START_OF_TURN,i.hp.get());
-                }
-                ready.set(false);//wait for all players to move.
-                
             }else{ 
-                if(clients.length == 1){//only one remaining, so send End of Game
-                    clients[0].out.printf("%s\n",END_OF_GAME_WIN);
-                    removeClient(clients[0].username);
-                }
-            state.set(5);
+                if(currentPlayers == 1){//only one remaining, so send End of Game
+                    int winner = live.nextSetBit(0);
+                    GameServer.journal.log(Journal.OVER, id, winner);
+                    outs[winner].endOfGame(true);
+                    removeSlot(winner);
+                }else
+                    GameServer.journal.log(Journal.OVER, id, -1);
+            state = 5;
+            endSpectators();
             }
         }                
     }
@@ -216,48 +515,56 @@ public class Game {
     /**
      * Sends a end of turn (EOT) message to all of the players
      */
-        public synchronized void sendEOT(){
-        Integer numScanHits; 
-        Set<Pair> hits;
-        for(Client i: clients){
-            if(i.scanHits == null)//no scan action took place
-                if(scanNearShip){
-                    hits = scanPos(i.username, i.position.x, i.position.y);
-                    i.scanHits = hits.toArray(new Pair[hits.size()]);
-                    hits.clear();
-                }
-            numScanHits = i.scanHits.length;
+    void sendEOT(){
+        if(turnStarted != 0)
+            GameServer.metrics.turnTime.record(System.nanoTime() - turnStarted);
+        if(currentPlayers >= PARALLEL_EOT){
+            //each slot only writes its own scan buffer and writer, and the 
+            //board is only read, so chunks of slots can run side by side.
+            //The stream runs in the pool it is started from, so it stays off 
+            //the common pool, and writers only queue so nothing blocks in it.
+            int chunks = (names.length + EOT_CHUNK - 1) / EOT_CHUNK;
+            GameServer.turnEncoders.submit(() -> IntStream.range(0, chunks).parallel()
+                    .forEach(c -> endTurn(c * EOT_CHUNK, Math.min(names.length, (c + 1) * EOT_CHUNK))))
+                    .join();
+        }else
+            endTurn(0, names.length);
+        wasHit.clear();// reset hit indicators.
+        scanned.clear();
+        ready = true;//ready for start of turn.
+    }//end sendEOT
+    
+    //sends EOT to the live slots from up to to.
+    private void endTurn(int from, int to){
+        for(int i = live.nextSetBit(from); i >= 0 && i < to; i = live.nextSetBit(i + 1)){
+            if(!scanned.get(i) && scanNearShip)//no scan action took place
+                scanArea(i, x(i), y(i), -1, -1);
             //Send Message
-            i.out.printf("%s%d%d",END_OF_TURN,(i.wasHit ? 1 : 0),numScanHits);
-            if(numScanHits != 0){   //add each x,y pair.
-                for(Pair j: i.scanHits){
-                    i.out.printf("%d%d",j.x,j.y);
-                }    
-            } 
-            i.out.print('\n');
-            i.wasHit = false;// reset hit indicator.
-            i.scanHits = null;//clear any hit detected last turn 
-            
+            outs[i].endOfTurn(wasHit.get(i), scanHits, i * scanStride, scanCounts[i]);
+            scanCounts[i] = 0;//clear any hit detected last turn 
         }
-        ready.set(true);//ready for start of turn.
-    }//end sendEOT
+    }
     
     /**
-     * Sets the players start location
+     * Sets the players start location, the first turn starts once every 
+     * player has one.
      * @param name is the username of the player
      * @param x is the x coordinate of the target
      * @param y is the y coordinate of the target
      */
-        public void setStart(String name, Integer x, Integer y){
-        Boolean unready = false;
-        for(Client i: clients){           
-            if(name.equals(i.username))
-                i.position = new Pair(x,y);
-            if(i.position == null)
-                unready = true;//at least one player has not set their start loc.
-        }
-        if(!unready)
-            ready.set(true);//all start locations were set.
+    public void setStart(String name, int x, int y){
+        post(() -> {
+            if(state != 3){
+                error.println("ERROR: " + name + " sent a start location in game state " + state);
+                return;
+            }
+            int player = find(name);
+            if(player >= 0 && positions[player] == NOWHERE){
+                place(player, x, y);
+                GameServer.journal.log(Journal.START, id, player, x, y);
+            }
+            advance();
+        });
     }
     
     /**
@@ -265,47 +572,52 @@ public class Game {
      * @param name is the username of the player
      * @param dir is the direction to move, (numeric keypad)
      */
-        public void move(String name, Integer dir){
-        for(Client i: clients){
-            if(name.equals(i.username)){
-                switch (dir){//set x cord 
-                    case 1://fall through to 7
-                    case 4:
-                    case 7:
-                        if(i.position.x > 0)//don't move off board
-                            i.position.x -= 1;
-                        break;
-                    case 3://fall through to 9
-                    case 6:
-                    case 9:
-                        if(i.position.x < 9)//don't move off board
-                            i.position.x += 1;
-                        break;
-                    default:
-                        //do nothing     
-                }
-                switch (dir){// set y cord
-                    case 1:
-                    case 2:
-                    case 3:
-                        if(i.position.y < 9)
-                            i.position.y += 1;
-                        break;
-                    case 7:
-                    case 8:
-                    case 9:
-                        if(i.position.y > 0)
-                            i.position.y -= 1;
-                        break;
-                    default:
-                        //do nothing     
-                }
-                i.moved.set(true);
+    public void move(String name, int dir){
+        post(() -> {
+            int i = turnPlayer(name);
+            if(i < 0)
+                return;
+            int x = x(i);
+            int y = y(i);
+            switch (dir){//set x cord 
+                case 1://fall through to 7
+                case 4:
+                case 7:
+                    if(x > 0)//don't move off board
+                        x -= 1;
+                    break;
+                case 3://fall through to 9
+                case 6:
+                case 9:
+                    if(x < size - 1)//don't move off board
+                        x += 1;
+                    break;
+                default:
+                    //do nothing     
+            }
+            switch (dir){// set y cord
+                case 1:
+                case 2:
+                case 3:
+                    if(y < size - 1)
+                        y += 1;
+                    break;
+                case 7:
+                case 8:
+                case 9:
+                    if(y > 0)
+                        y -= 1;
+                    break;
+                default:
+                    //do nothing     
             }
-                 
-        }//end for
-        //check if all players have moved.
-        checkAllMoved();
+            unplace(i);
+            place(i, x, y);
+            GameServer.journal.log(Journal.MOVE, id, i, dir, x, y);
+            setMoved(i);
+            //check if all players have moved.
+            advance();
+        });
     }//end movePlayer
     
     /**
@@ -314,20 +626,20 @@ public class Game {
      * @param x is the x coordinate of the target
      * @param y is the y coordinate of the target
      */
-    public void scan(String name, Integer x, Integer y){
-        Set<Pair> hits = null;
-        for(Client i: clients){      
-            if(i.username.equals(name)){
-                hits = scanPos(i.username,x,y);//scan at target
-                if(scanNearShip)//server|game specific rule.
-                    hits.addAll(scanPos(i.username,i.position.x,i.position.y));  //scan arround ship
-                i.scanHits = hits.toArray(new Pair[hits.size()]);
-                i.moved.set(true);
-            }    
-        }
-        if(hits != null)//cleanup the set
-            hits.clear(); 
-        checkAllMoved();
+    public void scan(String name, int x, int y){
+        post(() -> {
+            int i = turnPlayer(name);
+            if(i < 0)
+                return;
+            GameServer.journal.log(Journal.SCAN, id, i, x, y);
+            if(scanNearShip)//server|game specific rule.
+                scanArea(i, x, y, x(i), y(i));//scan at target and arround ship
+            else
+                scanArea(i, x, y, -1, -1);//scan at target
+            scanned.set(i);
+            setMoved(i);
+            advance();
+        });
     }//end scan
     
     /**
@@ -336,130 +648,537 @@ public class Game {
      * @param x is the x coordinate of the target
      * @param y is the y coordinate of the target
      */
-    public void fire(String name, Integer x, Integer y){
-        Client player = null;
-        Boolean hitScored = false;
-        for(Client i: clients){      
-            if(i.username.equals(name)){
-                player = i;
-                i.moved.set(true);
-                //don't fire on yourself
-            }else
-                if(i.position.x.equals(x) && i.position.y.equals(y))//check to see if there is a ship there
-                    if(calcHit(i.position,new Pair(x,y))){//check to see if it hit.
-                        i.hp.addAndGet(-damagePerHit);//subtract hit points from the player.
+    public void fire(String name, int x, int y){
+        post(() -> {
+            int player = turnPlayer(name);
+            if(player < 0)
+                return;
+            GameServer.journal.log(Journal.FIRE, id, player, x, y);
+            boolean hitScored = false;
+            //only the ships in the target square can be hit
+            for(int i = board.get(square(x, y)); i >= 0; i = nextInSquare[i]){      
+                if(i != player)//don't fire on yourself
+                    if(calcHit(i, x, y)){//check to see if it hit.
+                        hitPoints[i] -= damagePerHit;//subtract hit points from the player.
+                        GameServer.journal.log(Journal.HIT, id, i, hitPoints[i], player);
                         hitScored = true;
                     }
-            
-        }
-        
-        if(hitScored && player != null)//inform the player whether they hit or not.
-            player.wasHit = true; 
-        checkAllMoved();
+            }
+            if(hitScored)//inform the player whether they hit or not.
+                wasHit.set(player); 
+            setMoved(player);
+            advance();
+        });
     }
 
     /**
-     * Removes a disconnecting client from the game
+     * Removes a disconnecting client from the game, ends it if it can not 
+     * continue, and drops it from the game lists once it is empty.
      * @param name is the username of the client
      */
+    public void clientDisconnected(String name){
+        post(() -> leave(find(name)));
+    }
     
-    //why am i here for end of game
-    public synchronized void clientDisconnected(String name){
-        if(clientIsPresent(name)){// make sure client is actualy in the game
+    /**
+     * Holds a dropped players slot for GRACE, the turns go on without them.
+     * @param out is the dropped connections writer, ignored if the player 
+     *        is already back on another one.
+     */
+    public void clientDropped(String name, MessageWriter out){
+        post(() -> {
+            int slot = find(name);
+            if(slot < 0 || outs[slot] != out)
+                return;
+            away.set(slot);
+            outs[slot] = AWAY;
+            owners[slot] = null;
+            awayUntil[slot] = System.currentTimeMillis() + GRACE;
+            scheduleGrace();
+            debug.printf("%s dropped, holding their slot (%s)\n",name,this.name);
+        });
+    }
+    
+    /**
+     * Moves a player who resumed their session onto their new connection, 
+     * replying like join.
+     */
+    public void reattach(String name, MessageWriter out, ClientThread owner){
+        post(() -> {
+            int slot = find(name);
+            if(slot < 0 || state == 5){//gave up on them, or the game is over.
+                out.newGame(MessageWriter.NEWGAME_ERROR);
+                if(owner != null)
+                    owner.joinFailed();
+                return;
+            }
+            rejoin(slot, out, owner);
+        });
+    }
+    //removes a player who left, ending the game if it can't go on.
+    private void leave(int gone){
+        if(gone >= 0){// make sure client is actualy in the game
+            GameServer.journal.log(Journal.LEAVE, id, gone);
             if(currentPlayers  < 3){//game had only 2 players
-                if(state.get() > 2){//game had already started
+                if(state > 2){//game had already started
                     //send players an EOG message.
-                    state.set(5);//game over...
-                    for(Client i: clients)
-                        if(!i.username.equals(name)){
-                            i.out.printf("%s\n",END_OF_GAME_WIN);
-                            removeClient(i.username);
+                    state = 5;//game over...
+                    int winner = live.nextSetBit(0) == gone ? live.nextSetBit(gone + 1) : live.nextSetBit(0);
+                    GameServer.journal.log(Journal.OVER, id, winner);
+                    for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+                        if(i != gone){
+                            outs[i].endOfGame(true);
+                            removeSlot(i);
                         }else 
-                            i.out.printf("%s\n",END_OF_GAME_LOSE);
+                            outs[i].endOfGame(false);
                             //allways gets removed below 
-                            
+                        
                 }//else not started yet so just remove client.
             }//else, enough players to continue so just remove the client
-            removeClient(name);
+            removeSlot(gone);
+            //the player who left may have been the last one we were waiting on.
+            advance();
         }//else do nothing
-          
-    }
-    //checks for players around a specific position.
-    private Set<Pair> scanPos(String name, Integer x, Integer y){
-        Set<Pair> hits = new TreeSet ();//set should prevent duplicates.
-        for(Client i: clients){
-            if(i.username.equals(name))//don't want to detect yourself.
-                continue;
-            if(i.position.x <= x + scanDistance && i.position.x >= x - scanDistance)
-                if(i.position.y <= y + scanDistance && i.position.y >= y - scanDistance)
-                    hits.add(i.position);  
+        if(currentPlayers == 0)
+            state = 5;//nobody can join a game that is being removed.
+        if(state == 5)
+            endSpectators();
+        if(currentPlayers == 0){
+            GameServer.timers.cancel(deadline);
+            GameServer.timers.cancel(grace);
+            if(GameServer.gameList.remove(this.name, this))
+                GameServer.lobby.gameRemoved(this.name);
+            if(GameServer.activeGames.remove(this.name, this))
+                debug.printf("Removing (%s)\n",this.name);
+        }
+    }
+    //gives the players turnTime to finish the current phase.
+    private void startDeadline(){
+        if(turnTime == 0)
+            return;
+        deadlineAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(turnTime);
+        GameServer.timers.schedule(deadline, turnTime);
+    }
+    //Resolves whatever the players have not done yet, so one idle player 
+    //can't hold up the game. Missing moves become no-ops and missing start 
+    //locations are picked at random, and sent to the player with S.
+    private void deadlinePassed(){
+        int phase = state;
+        if(deadlineAt == 0 || (phase != 3 && phase != 4))
+            return;
+        long left = deadlineAt - System.nanoTime();
+        if(left > 0){//early tick, or a deadline from an earlier turn.
+            GameServer.timers.schedule(deadline, TimeUnit.NANOSECONDS.toMillis(left) + 1);
+            return;
+        }
+        deadlineAt = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)){
+            if(phase == 3 && positions[i] == NOWHERE){
+                place(i, random.nextInt(size), random.nextInt(size));
+                GameServer.journal.log(Journal.START, id, i, x(i), y(i));
+                outs[i].startLocation(x(i), y(i));
+                if(owners[i] != null)//it is still waiting to send S.
+                    owners[i].placed();
+                debug.printf("%s timed out choosing a start location (%s)\n",names[i],name);
+            }else if(phase == 4 && !moved.get(i)){
+                setMoved(i);
+                GameServer.journal.log(Journal.IDLE, id, i);
+                debug.printf("%s timed out (%s)\n",names[i],name);
+            }
+        }
+        advance();
+    }
+    //starts the first turn or ends the current one once every player is done.
+    private void advance(){
+        if(state == 3){
+            for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+                if(positions[i] == NOWHERE)
+                    return;//at least one player has not set their start loc.
+            state = 4;
+            ready = true;//all start locations were set.
+            publishSummary();
+            sendSOT();
+        }else if(state == 4){
+            checkAllMoved();
+            if(ready){
+                sendEOT();//end the turns
+                publishSummary();
+                sendSOT();//start next turn 
+            }
+        }
+    }
+    
+    /**
+     * Adds a spectator, who gets NEWGAME_WATCH and then a board summary 
+     * every turn, or a failed watch if the game has already ended.
+     */
+    public void watch(ClientThread c){
+        post(() -> {
+            if(state == 5 || state < 3){
+                c.watchResult(false);
+                return;
+            }
+            spectators.add(c);
+            c.watchResult(true);
+        });
+    }
+    
+    /**
+     * Removes a spectator, safe from any thread.
+     */
+    public void unwatch(ClientThread c){
+        spectators.remove(c);
+    }
+    //encodes the board once and sends it to every spectator.
+    private void publishSummary(){
+        if(spectators.isEmpty())
+            return;
+        String[] players = new String[currentPlayers];
+        int[] ships = new int[currentPlayers * 3];
+        int n = 0;
+        for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)){
+            players[n] = names[i];
+            ships[n * 3] = x(i);
+            ships[n * 3 + 1] = y(i);
+            ships[n * 3 + 2] = Math.max(-1, hitPoints[i]);
+            n++;
+        }
+        Summary summary = new Summary(turn, players, ships, n);
+        for(ClientThread c: spectators)
+            c.watchUpdate(summary);
+    }
+    //the game is over, send the spectators back to the lobby.
+    private void endSpectators(){
+        for(ClientThread c: spectators)
+            c.watchEnded();
+        spectators.clear();
+    }
+    
+    /**
+     * Captures the game as a game action, so the game only stops for as 
+     * long as it takes to copy its own state. A SNAPSHOT event is journaled 
+     * at the same point, replay picks up from there.
+     * @param seq is the snapshots sequence number.
+     * @return the encoded game, or null if it has ended.
+     */
+    CompletableFuture<byte[]> snapshot(int seq){
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        post(() -> {
+            try{
+                if(state == 5 || currentPlayers == 0)
+                    return;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + currentPlayers * 32);
+                write(new DataOutputStream(bytes));
+                GameServer.journal.log(Journal.SNAPSHOT, id, seq);
+                result.complete(bytes.toByteArray());
+            }catch (IOException e){
+                error.println("ERROR: snapshot of game (" + name + ") failed: " + e);
+            }finally{
+                result.complete(null);//if it wasn't completed above.
+            }
+        });
+        return result;
+    }
+    private void write(DataOutputStream out) throws IOException{
+        out.writeLong(id);
+        out.writeUTF(name);
+        out.writeInt(names.length);
+        out.writeInt(hp);
+        out.writeInt(scanDistance);
+        out.writeInt(damagePerHit);
+        out.writeBoolean(scanNearShip);
+        out.writeInt(turnTime);
+        out.writeInt(size);
+        out.writeInt(nPlayers);
+        out.writeInt(state);
+        out.writeInt(turn);
+        out.writeInt(currentPlayers);
+        for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)){
+            out.writeInt(i);
+            out.writeUTF(names[i]);
+            out.writeInt(hitPoints[i]);
+            out.writeLong(positions[i]);
+            out.writeByte((moved.get(i) ? 1 : 0) | (wasHit.get(i) ? 2 : 0) | (scanned.get(i) ? 4 : 0));
+            out.writeInt(scanCounts[i]);
+            for(int j = 0; j < scanCounts[i] * 2; j++)
+                out.writeInt(scanHits[i * scanStride + j]);
+        }
+    }
+    
+    /**
+     * Rebuilds a game written by snapshot, with every slot held.
+     * Call resume once it is back in the game lists.
+     */
+    static Game read(DataInputStream in) throws IOException{
+        Game g = new Game(in.readLong(), in.readUTF(), in.readInt(), in.readInt(), in.readInt(), 
+                in.readInt(), in.readBoolean(), in.readInt(), in.readInt());
+        g.nPlayers = in.readInt();
+        g.state = in.readInt();
+        g.turn = in.readInt();
+        int players = in.readInt();
+        for(int n = 0; n < players; n++){
+            int i = in.readInt();
+            g.occupy(i, in.readUTF(), AWAY);
+            g.hitPoints[i] = in.readInt();
+            long position = in.readLong();
+            if(position != NOWHERE)
+                g.place(i, (int)(position >>> 32), (int)position);
+            int flags = in.readByte();
+            if((flags & 1) != 0)
+                g.setMoved(i);
+            g.wasHit.set(i, (flags & 2) != 0);
+            g.scanned.set(i, (flags & 4) != 0);
+            g.scanCounts[i] = in.readInt();
+            for(int j = 0; j < g.scanCounts[i] * 2; j++)
+                g.scanHits[i * g.scanStride + j] = in.readInt();
+        }
+        return g;
+    }
+    
+    /**
+     * Rebuilds a game from its CREATED event.
+     */
+    static Game created(Journal.Event e){
+        int[] f = e.fields;
+        return new Game(e.game, e.name, f[0], f[1], f[2], f[3], f[4] != 0, f[5], f[6]);
+    }
+    
+    /**
+     * Applies a journaled event to a game being restored, before it is in 
+     * the game lists. Players that join are held, not connected.
+     */
+    void replay(Journal.Event e){
+        int[] f = e.fields;
+        switch(e.type){
+            case Journal.JOIN:
+                occupy(f[0], e.name, AWAY);
+                state = currentPlayers == nPlayers ? 3 : 2;
+                break;
+            case Journal.LEAVE:
+            case Journal.ELIMINATED:
+                if(live.get(f[0]))
+                    removeSlot(f[0]);
+                if(currentPlayers == 0)
+                    state = 5;
+                break;
+            case Journal.START:
+                if(positions[f[0]] == NOWHERE)
+                    place(f[0], f[1], f[2]);
+                break;
+            case Journal.TURN://the last turn ended, as in sendEOT and sendSOT.
+                wasHit.clear();
+                scanned.clear();
+                Arrays.fill(scanCounts, 0);
+                moved.clear();
+                movedCount = 0;
+                turn = f[0];
+                state = 4;
+                break;
+            case Journal.MOVE:
+                unplace(f[0]);
+                place(f[0], f[2], f[3]);
+                setMoved(f[0]);
+                break;
+            case Journal.FIRE:
+            case Journal.IDLE:
+                setMoved(f[0]);
+                break;
+            case Journal.HIT:
+                hitPoints[f[0]] = f[1];
+                wasHit.set(f[2]);
+                break;
+            case Journal.SCAN://the board is as it was, so the scan finds the same ships.
+                if(scanNearShip)
+                    scanArea(f[0], f[1], f[2], x(f[0]), y(f[0]));
+                else
+                    scanArea(f[0], f[1], f[2], -1, -1);
+                scanned.set(f[0]);
+                setMoved(f[0]);
+                break;
+            case Journal.MATCHED:
+                nPlayers = f[0];
+                state = 3;
+                break;
+            case Journal.OVER:
+                state = 5;
+                break;
+            default:
+        }
+    }
+    
+    /**
+     * Starts a restored games timers, its players have GRACE to reconnect.
+     */
+    void resume(){
+        post(() -> {
+            long until = System.currentTimeMillis() + GRACE;
+            for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)){
+                away.set(i);
+                awayUntil[i] = until;
+                outs[i] = AWAY;
+            }
+            scheduleGrace();
+            if(state == 3 || state == 4)
+                startDeadline();
+        });
+    }
+    //gives up the held slots whose time has run out.
+    private void graceExpired(){
+        long now = System.currentTimeMillis();
+        for(int i = away.nextSetBit(0); i >= 0; i = away.nextSetBit(i + 1)){
+            if(awayUntil[i] <= now){
+                debug.printf("%s did not come back (%s)\n",names[i],name);
+                leave(i);
+            }
+        }
+        if(state != 5)
+            scheduleGrace();
+    }
+    //sets the grace timer for the first held slot to run out.
+    private void scheduleGrace(){
+        long next = Long.MAX_VALUE;
+        for(int i = away.nextSetBit(0); i >= 0; i = away.nextSetBit(i + 1))
+            next = Math.min(next, awayUntil[i]);
+        if(next != Long.MAX_VALUE)
+            GameServer.timers.schedule(grace, Math.max(1, next - System.currentTimeMillis()));
+    }
+    //the named players slot, if they are in a turn and have not already moved.
+    private int turnPlayer(String name){
+        if(state != 4)
+            return -1;
+        int player = find(name);
+        if(player < 0 || moved.get(player))
+            return -1;
+        return player;
+    }
+    private int find(String name){
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+    private void setMoved(int slot){
+        moved.set(slot);
+        movedCount++;
+    }
+    private int x(int slot){
+        return (int)(positions[slot] >>> 32);
+    }
+    private int y(int slot){
+        return (int)positions[slot];
+    }
+    //adds a player to the board.
+    private void place(int slot, int x, int y){
+        positions[slot] = (long)x << 32 | y;
+        long square = square(x, y);
+        nextInSquare[slot] = board.get(square);
+        board.put(square, slot);
+    }
+    private long square(int x, int y){
+        return (long)y * size + x;
+    }
+    //takes a player off the board.
+    private void unplace(int slot){
+        if(positions[slot] == NOWHERE)
+            return;
+        long square = square(x(slot), y(slot));
+        int head = board.get(square);
+        if(head == slot){
+            if(nextInSquare[slot] < 0)
+                board.remove(square);
+            else
+                board.put(square, nextInSquare[slot]);
+        }else
+            for(int i = head; i >= 0; i = nextInSquare[i])
+                if(nextInSquare[i] == slot){
+                    nextInSquare[i] = nextInSquare[slot];
+                    break;
+                }
+        nextInSquare[slot] = -1;
+    }
+    //Adds the squares within scanDistance of x1,y1 or of x2,y2 that hold 
+    //another player to the players scanHits, in x then y order with no 
+    //duplicates. Pass x2 = -1 to scan around one point.
+    private void scanArea(int player, int x1, int y1, int x2, int y2){
+        int d = scanDistance;
+        int minX = Math.max(0, x2 < 0 ? x1 - d : Math.min(x1, x2) - d);
+        int maxX = Math.min(size - 1, x2 < 0 ? x1 + d : Math.max(x1, x2) + d);
+        for(int i = minX; i <= maxX; i++){
+            boolean in1 = Math.abs(i - x1) <= d;
+            boolean in2 = x2 >= 0 && Math.abs(i - x2) <= d;
+            if(in1 && in2){//two ranges in this column, scan them lowest first
+                int lo = Math.min(y1, y2);
+                int hi = Math.max(y1, y2);
+                if(hi - lo <= 2 * d + 1)//they touch or overlap
+                    scanColumn(player, i, lo - d, hi + d);
+                else{
+                    scanColumn(player, i, lo - d, lo + d);
+                    scanColumn(player, i, hi - d, hi + d);
+                }
+            }else if(in1)
+                scanColumn(player, i, y1 - d, y1 + d);
+            else if(in2)
+                scanColumn(player, i, y2 - d, y2 + d);
         }
-        return hits;
     }
-    private Boolean calcHit(Pair a, Pair b){
-        //int hitProbability  = 100 - (distance from pair a to pair b) * 10 //possible hit formula
+    private void scanColumn(int player, int x, int from, int to){
+        to = Math.min(size - 1, to);
+        for(int j = Math.max(0, from); j <= to; j++)
+            for(int c = board.get(square(x, j)); c >= 0; c = nextInSquare[c])
+                if(c != player){//don't want to detect yourself.
+                    addScanHit(player, x, j);
+                    break;//one entry per square
+                }
+    }
+    private void addScanHit(int player, int x, int y){
+        int n = player * scanStride + scanCounts[player] * 2;
+        scanHits[n] = x;
+        scanHits[n + 1] = y;
+        scanCounts[player]++;
+    }
+    private boolean calcHit(int target, int x, int y){
+        //int hitProbability  = 100 - (distance from target to x,y) * 10 //possible hit formula
         //return = (hitProbability > (random 1-100) ? true : false)
 
         return true; //hit formula not implemented yet.
     }
-    private synchronized void checkAllMoved(){
-        Boolean unready = false;
-        for(Client i: clients)
-            if(!i.moved.get()){// if any player has not moved flag unready
-                unready = true;
-                //debug.println("DEBUG "+ i.username + ": move flag is = " + i.moved.get());
-            }
-        if(!unready)//if all have moved set ready to true so we can end turn.
-            ready.set(true);
+    private void checkAllMoved(){
+        if(movedCount == currentPlayers)//if all have moved set ready to true so we can end turn.
+            ready = true;
     }
     
     /**
-     * Removes the named client and shrinks the size of client array
+     * Removes the named client, tombstoning their slot.
      * @param name is the username of the player
      */    
-    synchronized void removeClient(String name){  
-        if(currentPlayers > 0){
-            if(clientIsPresent(name)){
-                //=int len = clients.length;
-                Client[] temp = clients;
-                //need to reduce the number of players if the game is in progress
-                if(state.get() > 2)
-                   nPlayers--; 
-
-                clients = new Client[nPlayers];
-
-                //copy all but named player to new Client array
-                int i = 0;
-                int j = 0;
-                while( i < currentPlayers){
-                    if(temp[i].username.equals(name)){
-                        //temp[i] = null;
-                        i++;
-                    }else{
-                        clients[j] = temp[i];
-                        i++;
-                        j++;                
-                    }  
-                }
-                currentPlayers--;
-            }
-                    
-        }else//0 players == everyone died that turn?.
-            clients = new Client[0];
+    void removeClient(String name){  
+        int slot = find(name);
+        if(slot >= 0)
+            removeSlot(slot);
     }//end removeClient
-    private boolean clientIsPresent(String name){
-        for(Client i: clients){
-            if(i.username.equals(name))
-                    return true;
+    private void removeSlot(int slot){
+        unplace(slot);//off the board
+        positions[slot] = NOWHERE;
+        if(moved.get(slot)){
+            moved.clear(slot);
+            movedCount--;
         }
-        return false;
+        wasHit.clear(slot);
+        scanned.clear(slot);
+        away.clear(slot);
+        scanCounts[slot] = 0;
+        slots.remove(names[slot]);
+        names[slot] = null;
+        outs[slot] = null;
+        owners[slot] = null;
+        live.clear(slot);
+        //need to reduce the number of players if the game is in progress
+        if(state > 2)
+           nPlayers--; 
+        currentPlayers--;
     }
     private void sendEOG(){
-        for(Client i: clients){
-            if(i.hp.get() >= 0)
-                i.out.printf("%s\n",END_OF_GAME_WIN);
-            else
-                i.out.printf("%s\n",END_OF_GAME_LOSE);
+        for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)){
+            outs[i].endOfGame(hitPoints[i] >= 0);
         }
     }
 }
@@ -23,17 +23,17 @@
  */
 package Server;
 
-import static Server.GameServer.clientList;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.ConcurrentModificationException;
-import java.util.List;
+import java.nio.file.Paths;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
 /**
  * Server for networked game
  *
@@ -44,72 +44,218 @@ public class GameServer {
     static final int CONN_TIMEOUT = 30000;// (30 seconds)
     static final int SOCKET_TIMEOUT= 2000;
     static final String ADMIN = "admin$"; // name of admin account.
+    static final String MODE_THREAD = "thread"; //one blocking thread per client.
+    static final String MODE_VIRTUAL = "virtual"; //one virtual thread per client.
+    static final String MODE_NIO = "nio";       //selector threads, non-blocking sockets.
+    static final int IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    static final int GAME_THREADS = Runtime.getRuntime().availableProcessors();
     //Default Rules, (Rules to be set by config file or admin consol.)
     static final int HP = 1;
     static final int PLAYERS = 4;
     static final Boolean SCAN_NEAR_SHIP = true;
     static final int HIT_DAMAGE = 1;    
     static final int SCAN_DISTANCE = 1;
+    static final int BOARD_SIZE = 10;   //default width and height of the board.
+    static final int TURN_TIME = 15000; //default milliseconds to act before a turn is resolved without you.
+    static final String JOURNAL_DIR = "journal"; //where -journal writes game events.
     //Vars
     static boolean shutdown = false;
+    static volatile long acceptLoopAt = System.currentTimeMillis(); //last time round the accept loop.
     static Map<String,Game> gameList;     //all games waiting for players
-    static List<ClientThread> clientList; //all connected clients
-    static List<String> userList;         //all current usernames
+    static final SessionRegistry sessions = new SessionRegistry(); //all connected clients and their usernames
     static Map<String,Game> activeGames;  //all currently active(started) games
-    static final String welcomeMsg = 
-              "Welcome to the test server:"
-            + "Server Rules>:"
-            + "\tPlayers start with "+ (HP+1) +" hit points.:"
-            + "\tGames require "+ PLAYERS + " players to start.:"
-            + (SCAN_NEAR_SHIP?"\tYou always scan your current location.:":"")
-            + "\tChance to hit is 100%:"
-            + "\tEach Hit does " + HIT_DAMAGE + " hit point of damage.";
+    static final TimerWheel timers = new TimerWheel(); //connection timeouts and heartbeats
+    static final Lobby lobby = new Lobby();            //gameList as sent to clients
+    static final Matchmaker matchmaker = new Matchmaker(); //players waiting for a match
+    static final ExecutorService gameExecutor =        //runs the games actions, and work handed off by timers
+            Executors.newFixedThreadPool(GAME_THREADS, r -> {
+                Thread t = new Thread(r, "game");
+                t.setDaemon(true);
+                return t;
+            });
+    static final ForkJoinPool turnEncoders =        //encodes a battle royales EOT in parallel
+            new ForkJoinPool(GAME_THREADS);
+    static ExecutorService writers;   //drains queued output to blocking sockets.
+    static int players = PLAYERS; //players per game, MAXPLAYERS or more is a battle royale.
+    static int boardSize = BOARD_SIZE; //width and height of new games boards.
+    static int turnTime = TURN_TIME;   //milliseconds to act in new games, 0 waits forever.
+    static String welcomeMsg = welcome(PLAYERS, BOARD_SIZE, TURN_TIME);
+    static Journal journal = new Journal(null); //game event log, off unless -journal is given.
+    static final Metrics metrics = new Metrics();  //message counts, turn and heartbeat times.
+    static boolean bots = false;  //fill matches that waited too long with bots.
 
     /**
      * The game server
      * @param args the command line arguments
+     *        [port] [-virtual | -nio] [-io threads] [-players n] [-board size] [-turn ms] 
+     *        [-journal [dir]] [-bots] [-http port]
      */
     public static void main(String[] args) {
         int portNumber = 9001;
-        if(args.length == 1)
-            portNumber = Integer.parseInt(args[0]);
-            
+        String mode = MODE_THREAD;
+        int ioThreads = IO_THREADS;
+        int httpPort = 0;
+        MetricsEndpoint endpoint = null;
+        for(int i = 0; i < args.length; i++){
+            switch(args[i]){
+                case "-virtual":
+                    mode = MODE_VIRTUAL;
+                    break;
+                case "-nio":
+                    mode = MODE_NIO;
+                    break;
+                case "-io":
+                    ioThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-players":
+                    players = Integer.parseInt(args[++i]);
+                    break;
+                case "-board":
+                    boardSize = Math.max(2, Math.min(Game.MAX_BOARD, Integer.parseInt(args[++i])));
+                    break;
+                case "-turn"://0 lets players take as long as they like.
+                    turnTime = Math.max(0, Integer.parseInt(args[++i]));
+                    break;
+                case "-journal"://journal, snapshots and crash recovery in dir, else JOURNAL_DIR
+                    if(i + 1 < args.length && !args[i + 1].startsWith("-") && !args[i + 1].matches("\\d+"))
+                        journal = new Journal(Paths.get(args[++i]));
+                    else
+                        journal = new Journal(Paths.get(JOURNAL_DIR));
+                    break;
+                case "-bots":
+                    bots = true;
+                    break;
+                case "-http"://metrics and health on the loopback address.
+                    httpPort = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    portNumber = Integer.parseInt(args[i]);
+            }
+        }
         
+        welcomeMsg = welcome(players, boardSize, turnTime);
         gameList = new ConcurrentHashMap();
-        clientList = Collections.synchronizedList(new ArrayList());
-        userList = Collections.synchronizedList(new ArrayList());
         activeGames = new ConcurrentHashMap();
+        timers.start();
         
+        try{
+            if(journal.enabled()){//restore any games a crash left in the journal.
+                Snapshots snapshots = new Snapshots(journal);
+                long start = System.nanoTime();
+                int restored = snapshots.recover();
+                if(restored > 0)
+                    System.out.printf("Restored %d games in %dms\n", restored, 
+                            (System.nanoTime() - start) / 1000000);
+                journal.start();
+                snapshots.start();
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(journal::shutdown));
+            if(httpPort > 0){
+                endpoint = new MetricsEndpoint(httpPort);
+                endpoint.start();
+            }
+
+            if(mode.equals(MODE_NIO))
+                runNio(portNumber, ioThreads);
+            else{
+                writers = clientExecutor(mode, r -> {
+                    Thread t = new Thread(r, "writer");
+                    t.setDaemon(true);//an idle writer must not keep the server up.
+                    return t;
+                });
+                runThreaded(portNumber, clientExecutor(mode));
+            }
+            if(endpoint != null)
+                endpoint.stop();
+        }catch (IOException e){
+            //Logger.getLogger(GameServer.class.getName()).log(Level.SEVERE, null, e);
+            System.out.println("IO Exception in GameServer ");
+            System.exit(1);
+        }
+            
+        System.out.println("Connection server shutdown, waiting for threads to finish.");
+    }
+    
+    //clients read the board size from the "The board is" line.
+    static String welcome(int players, int board, int turn){
+        return "Welcome to the test server:"
+            + "Server Rules>:"
+            + "\tPlayers start with "+ (HP+1) +" hit points.:"
+            + "\tGames require "+ players + " players to start.:"
+            + "\tThe board is " + board + "x" + board + " squares.:"
+            + (turn > 0?"\tYou have " + (turn % 1000 == 0 ? turn / 1000 + " seconds" : turn + " milliseconds") 
+                    + " to act, or your turn is skipped.:":"")
+            + (players >= Game.MAXPLAYERS?"\tBattle royale, last ship afloat wins.:":"")
+            + (SCAN_NEAR_SHIP?"\tYou always scan your current location.:":"")
+            + "\tChance to hit is 100%:"
+            + "\tEach Hit does " + HIT_DAMAGE + " hit point of damage.";
+    }
+    
+    /**
+     * Blocking server, one thread per connected client.
+     * @param portNumber is the port to listen on.
+     * @param executor runs each ClientThread on its own thread.
+     */
+    static void runThreaded(int portNumber, ExecutorService executor) throws IOException{
         //Try with resources 
         try (ServerSocket serverSocket = new ServerSocket(portNumber)){
             serverSocket.setSoTimeout(SOCKET_TIMEOUT);
             while(!shutdown){
+                acceptLoopAt = System.currentTimeMillis();
                 try {
                     Socket p = serverSocket.accept(); //will wait until socket timeout.
                     ClientThread c = new ClientThread(p);
-                    new Thread(c).start();
-                    clientList.add(c);
+                    sessions.add(c);
+                    executor.execute(c);
                 
                 }catch (SocketTimeoutException e) { 
-                    //will check the timer on all threads.
-                    try{
-                        for (ClientThread client : clientList) {
-                          client.updateTimer();
-                        }
-                    }catch (ConcurrentModificationException ce){
-                        //ignore, a client was removed while we were in the list.
-                    }
+                    //nothing to accept, check for shutdown.
                 }           
             }
-            
-        }catch (IOException e){
-            //Logger.getLogger(GameServer.class.getName()).log(Level.SEVERE, null, e);
-            System.out.println("IO Exception in GameServer ");
-            System.exit(1);
+        }finally{
+            executor.shutdown();//let running clients finish.
+        }
+    }
+    
+    /**
+     * Creates the executor for blocking client threads.
+     * Virtual threads need a Java 21 runtime, they are looked up by reflection
+     * so the server still builds and runs on older JDKs.
+     * @param mode is MODE_THREAD or MODE_VIRTUAL.
+     */
+    static ExecutorService clientExecutor(String mode){
+        return clientExecutor(mode, Executors.defaultThreadFactory());
+    }
+    
+    /**
+     * @param mode is MODE_THREAD or MODE_VIRTUAL.
+     * @param factory makes the platform threads.
+     */
+    static ExecutorService clientExecutor(String mode, ThreadFactory factory){
+        if(mode.equals(MODE_VIRTUAL)){
+            try{
+                return (ExecutorService)Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }catch (ReflectiveOperationException e){
+                System.out.println("Virtual threads are not supported by this JVM, using platform threads.");
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+    
+    /**
+     * Non-blocking server, all clients are serviced by a fixed set of 
+     * selector threads.
+     * @param portNumber is the port to listen on.
+     * @param ioThreads is the number of selector threads.
+     */
+    static void runNio(int portNumber, int ioThreads) throws IOException{
+        try (NioServer server = new NioServer(portNumber, ioThreads)){
+            while(!shutdown){
+                acceptLoopAt = System.currentTimeMillis();
+                server.accept(SOCKET_TIMEOUT);//will wait until socket timeout.
+            }
         }
-            
-        System.out.println("Connection server shutdown, waiting for threads to finish.");
     }
     
 }
-  
\ No newline at end of file
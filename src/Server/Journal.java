@@ -0,0 +1,400 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of every game event, for dispute resolution and offline 
+ * analysis.
+ * 
+ * Games encode each event into a small record and queue it, which never 
+ * blocks. A single writer thread copies queued records in batches into 
+ * memory-mapped segment files of SEGMENT_SIZE bytes, and forces them to 
+ * disk every FORCE_INTERVAL. When there is nothing to write it parks until 
+ * an event is logged or a sync is due. A record is
+ *   [length: 2 bytes, big endian][type: 1 byte][time][game][fields]
+ * where time (milliseconds) and game (id) are unsigned varints, a name is a 
+ * varint length and utf-8 bytes, and the other fields are zigzag varints. 
+ * A length of 0 marks the unused end of a segment.
+ * 
+ * Run it to print a journal: java Server.Journal [dir]
+ */
+class Journal implements Runnable {
+    static final int SEGMENT_SIZE = 64 << 20;  //bytes per segment file.
+    static final int FORCE_INTERVAL = 200;     //milliseconds between syncs.
+    static final int MAX_QUEUED = 1 << 20;     //records waiting before new ones are dropped.
+    static final String SUFFIX = ".journal";
+    private static final PrintStream error = System.out;
+    
+    //Event types, and their fields after the game id.
+    static final byte CREATED = 1;    //name, players, hp, scanDistance, damage, scanNear, turnTime, size
+    static final byte JOIN = 2;       //name, slot
+    static final byte LEAVE = 3;      //slot
+    static final byte START = 4;      //slot, x, y
+    static final byte TURN = 5;       //turn
+    static final byte MOVE = 6;       //slot, direction, x, y
+    static final byte FIRE = 7;       //slot, x, y
+    static final byte SCAN = 8;       //slot, x, y
+    static final byte HIT = 9;        //slot hit, hp left, firing slot
+    static final byte IDLE = 10;      //slot, timed out this turn
+    static final byte ELIMINATED = 11;//slot
+    static final byte OVER = 12;      //winning slot, -1 if none
+    static final byte SNAPSHOT = 13;  //snapshot sequence number, the game was captured here.
+    static final byte MATCHED = 14;   //players, a match started with this many instead of its size.
+    
+    private final Path dir;           //null when journaling is off.
+    private final AtomicLong gameIds = new AtomicLong();
+    private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running = true;
+    private Thread writer;
+    private volatile boolean idle = false; //the writer is parked, or about to park, on an empty queue.
+    private volatile int segment = 0; //only changed by the writer thread.
+    //writer thread only
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private boolean dirty = false;
+    
+    /**
+     * @param dir is the directory for segment files, or null to discard events.
+     */
+    Journal(Path dir){
+        this.dir = dir;
+    }
+    
+    boolean enabled(){
+        return dir != null;
+    }
+    
+    Path dir(){
+        return dir;
+    }
+    
+    /**
+     * @return the segment being written, later events go here or after it.
+     */
+    int segment(){
+        return segment;
+    }
+    
+    /**
+     * Opens the next segment and starts the writer thread.
+     */
+    void start() throws IOException{
+        if(dir == null)
+            return;
+        Files.createDirectories(dir);
+        List<Path> existing = segments(dir);
+        if(!existing.isEmpty())//never append to an old segment, start a new one.
+            segment = index(existing.get(existing.size() - 1)) + 1;
+        openSegment();
+        writer = new Thread(this, "journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Writes what is queued and stops the writer.
+     */
+    void shutdown(){
+        running = false;
+        if(writer == null)
+            return;
+        LockSupport.unpark(writer);
+        try{
+            writer.join(1000);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    long newGameId(){
+        return gameIds.incrementAndGet();
+    }
+    
+    /**
+     * Makes sure new game ids are higher than one restored from an earlier run.
+     */
+    void reserveIds(long used){
+        gameIds.accumulateAndGet(used, Math::max);
+    }
+    
+    /**
+     * Queues an event, never blocks.
+     * @param name is the events name field, or null if it has none.
+     * @param fields are the events int fields.
+     */
+    void log(byte type, long game, String name, int... fields){
+        if(dir == null)
+            return;
+        if(queued.incrementAndGet() > MAX_QUEUED){//writer can't keep up, don't grow forever.
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(encode(type, System.currentTimeMillis(), game, name, fields));
+        if(idle)//only a parked writer needs waking.
+            LockSupport.unpark(writer);
+    }
+    
+    void log(byte type, long game, int... fields){
+        log(type, game, null, fields);
+    }
+    
+    /**
+     * @return events dropped because the queue was full.
+     */
+    long dropped(){
+        return dropped.get();
+    }
+    
+    static byte[] encode(byte type, long time, long game, String name, int[] fields){
+        byte[] text = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(2 + 1 + 10 + 10 
+                + (text == null ? 0 : 5 + text.length) + fields.length * 5);
+        b.position(2);
+        b.put(type);
+        putVarint(b, time);
+        putVarint(b, game);
+        if(text != null){
+            putVarint(b, text.length);
+            b.put(text);
+        }
+        for(int f: fields)
+            putVarint(b, ((f << 1) ^ (f >> 31)) & 0xffffffffL);
+        int length = b.position() - 2;
+        b.putShort(0, (short)length);
+        byte[] record = new byte[b.position()];
+        System.arraycopy(b.array(), 0, record, 0, record.length);
+        return record;
+    }
+    
+    private static void putVarint(ByteBuffer b, long value){
+        while((value & ~0x7fL) != 0){
+            b.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        b.put((byte)value);
+    }
+    
+    @Override
+    public void run(){
+        long lastForce = System.nanoTime();
+        while(true){
+            boolean stopping = !running;
+            byte[] record;
+            while((record = queue.poll()) != null){//the batch is whatever has queued up.
+                queued.decrementAndGet();
+                write(record);
+            }
+            long now = System.nanoTime();
+            if(dirty && (stopping || now - lastForce >= TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL))){
+                mapped.force();
+                dirty = false;
+                lastForce = now;
+            }
+            if(stopping)
+                break;
+            idle = true;
+            if(queue.isEmpty() && running){//log() checks idle after it queues, so nothing is missed.
+                if(dirty)//wake up in time for the next sync.
+                    LockSupport.parkNanos(lastForce + TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL) - now);
+                else
+                    LockSupport.park(this);
+            }
+            idle = false;
+        }
+        try{
+            channel.close();
+        }catch (IOException e){
+            error.println("ERROR: closing journal segment: " + e);
+        }
+    }
+    
+    private void write(byte[] record){
+        try{
+            if(mapped.remaining() < record.length + 2){//keep room for the end marker.
+                mapped.force();
+                channel.close();
+                segment++;
+                openSegment();
+            }
+            mapped.put(record);
+            dirty = true;
+        }catch (IOException e){
+            error.println("ERROR: journal record lost: " + e);
+        }
+    }
+    
+    private void openSegment() throws IOException{
+        channel = FileChannel.open(dir.resolve(String.format("%08d%s", segment, SUFFIX)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    }
+    
+    /**
+     * @return the segment files in dir, oldest first.
+     */
+    static List<Path> segments(Path dir) throws IOException{
+        List<Path> list = new ArrayList<>();
+        if(!Files.isDirectory(dir))
+            return list;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)){
+            for(Path p: files)
+                list.add(p);
+        }
+        Collections.sort(list);
+        return list;
+    }
+    
+    static int index(Path segment){
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+    }
+    
+    /**
+     * A decoded record.
+     */
+    static class Event {
+        byte type;
+        long time;
+        long game;
+        String name;
+        int[] fields;
+        
+        @Override
+        public String toString(){
+            StringBuilder s = new StringBuilder();
+            s.append(time).append(' ').append(game).append(' ').append(typeName(type));
+            if(name != null)
+                s.append(' ').append(name);
+            for(int f: fields)
+                s.append(' ').append(f);
+            return s.toString();
+        }
+    }
+    
+    /**
+     * Reads every event in a segment, in the order they were written.
+     */
+    static void read(Path segment, Consumer<Event> handler) throws IOException{
+        try(FileChannel c = FileChannel.open(segment, StandardOpenOption.READ)){
+            ByteBuffer b = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+            while(b.remaining() >= 2){
+                int length = b.getShort() & 0xffff;
+                if(length == 0 || length > b.remaining())
+                    break;//end of the segment, or a torn last record.
+                int end = b.position() + length;
+                Event e = new Event();
+                e.type = b.get();
+                e.time = varint(b);
+                e.game = varint(b);
+                if(hasName(e.type)){
+                    byte[] text = new byte[(int)varint(b)];
+                    b.get(text);
+                    e.name = new String(text, StandardCharsets.UTF_8);
+                }
+                int[] fields = new int[8];
+                int n = 0;
+                while(b.position() < end){
+                    long z = varint(b);
+                    if(n == fields.length)
+                        fields = Arrays.copyOf(fields, n * 2);
+                    fields[n++] = (int)(z >>> 1) ^ -(int)(z & 1);
+                }
+                e.fields = Arrays.copyOf(fields, n);
+                handler.accept(e);
+            }
+        }
+    }
+    
+    private static long varint(ByteBuffer b){
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            byte v = b.get();
+            value |= (long)(v & 0x7f) << shift;
+            if(v >= 0)
+                break;
+        }
+        return value;
+    }
+    
+    static boolean hasName(byte type){
+        return type == CREATED || type == JOIN;
+    }
+    
+    static String typeName(byte type){
+        switch(type){
+            case CREATED: return "CREATED";
+            case JOIN: return "JOIN";
+            case LEAVE: return "LEAVE";
+            case START: return "START";
+            case TURN: return "TURN";
+            case MOVE: return "MOVE";
+            case FIRE: return "FIRE";
+            case SCAN: return "SCAN";
+            case HIT: return "HIT";
+            case IDLE: return "IDLE";
+            case ELIMINATED: return "ELIMINATED";
+            case OVER: return "OVER";
+            case SNAPSHOT: return "SNAPSHOT";
+            case MATCHED: return "MATCHED";
+            default: return "UNKNOWN(" + type + ")";
+        }
+    }
+    
+    /**
+     * Prints every event in a journal directory.
+     * @param args [dir], defaults to GameServer.JOURNAL_DIR
+     */
+    public static void main(String[] args) throws IOException{
+        Path dir = Paths.get(args.length > 0 ? args[0] : GameServer.JOURNAL_DIR);
+        for(Path segment: segments(dir))
+            read(segment, System.out::println);
+    }
+}
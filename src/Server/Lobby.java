@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The list of games waiting for players, and the clients watching it.
+ * Changes are collected for COALESCE_DELAY and then published as a new 
+ * version. Each version is encoded once, as a full list for text clients 
+ * and as a add/remove delta for binary clients that have the version before 
+ * it, and the same bytes are sent to every subscriber. Sending only queues 
+ * the bytes on each connection, so a subscriber that stops reading does 
+ * not hold up the others.
+ */
+class Lobby {
+    static final int COALESCE_DELAY = 100; //milliseconds to collect changes.
+    
+    private final Set<ClientThread> subscribers = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    //guarded by lock
+    private final Set<String> games = new LinkedHashSet();
+    private final Set<String> added = new LinkedHashSet();
+    private final Set<String> removed = new LinkedHashSet();
+    private boolean publishScheduled = false;
+    
+    private volatile Snapshot current = new Snapshot(0, new String[0]);
+    private final TimerWheel.Timeout publishTask = new TimerWheel.Timeout(){
+        @Override
+        void expire(){//the fan-out is not done on the wheel.
+            GameServer.gameExecutor.execute(Lobby.this::publish);
+        }
+    };
+    
+    /**
+     * A published version of the game list, pre-encoded.
+     */
+    static class Snapshot {
+        final long version;
+        final byte[] text;
+        final byte[] binary;
+        Snapshot(long version, String[] games){
+            this.version = version;
+            ByteArrayOutputStream t = new ByteArrayOutputStream();
+            new TextMessageWriter(t).gameList(Arrays.asList(games));
+            this.text = t.toByteArray();
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            new BinaryMessageWriter(b).gameList(Arrays.asList(games));
+            this.binary = b.toByteArray();
+        }
+    }
+    
+    /**
+     * The changes from the previous version, pre-encoded for binary clients.
+     */
+    static class Delta {
+        final long fromVersion;
+        final byte[] binary;
+        Delta(long fromVersion, Set<String> added, Set<String> removed){
+            this.fromVersion = fromVersion;
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            new BinaryMessageWriter(b).gameListDelta(added, removed);
+            this.binary = b.toByteArray();
+        }
+    }
+    
+    /**
+     * Sends the client the current list and any later changes.
+     */
+    void subscribe(ClientThread c){
+        subscribers.add(c);
+        c.lobbyUpdate(current, null);
+    }
+    
+    void unsubscribe(ClientThread c){
+        subscribers.remove(c);
+    }
+    
+    /**
+     * A new game is waiting for players.
+     */
+    void gameAdded(String name){
+        lock.lock();
+        try{
+            if(!removed.remove(name))
+                added.add(name);
+            schedulePublish();
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * A game has started or been abandoned.
+     */
+    void gameRemoved(String name){
+        lock.lock();
+        try{
+            if(!added.remove(name))
+                removed.add(name);
+            schedulePublish();
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    private void schedulePublish(){
+        if(!publishScheduled){
+            publishScheduled = true;
+            GameServer.timers.schedule(publishTask, COALESCE_DELAY);
+        }
+    }
+    
+    //encodes the next version and pushes it to every subscriber.
+    private void publish(){
+        Snapshot snapshot;
+        Delta delta;
+        lock.lock();
+        try{
+            publishScheduled = false;
+            if(added.isEmpty() && removed.isEmpty())
+                return;
+            games.addAll(added);
+            games.removeAll(removed);
+            long version = current.version;
+            delta = new Delta(version, added, removed);
+            snapshot = new Snapshot(version + 1, games.toArray(new String[games.size()]));
+            added.clear();
+            removed.clear();
+            current = snapshot;
+        }finally{
+            lock.unlock();
+        }
+        for(ClientThread c: subscribers)
+            c.lobbyUpdate(snapshot, delta);
+    }
+}
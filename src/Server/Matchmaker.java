@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Puts players who asked for a match into new games.
+ * 
+ * Clients add a ticket to a lock-free queue and return. Like a game, the 
+ * matchmaker is drained by one GameServer.gameExecutor task at a time, so 
+ * the players waiting for each game size need no locks. A game is created 
+ * the moment enough players are waiting. If fewer turn up, the ones who 
+ * have waited MAX_WAIT start a smaller game, as long as there are two.
+ */
+class Matchmaker {
+    static final int MAX_WAIT = 20000; //milliseconds before a match starts short.
+    private static final PrintStream debug = System.out;
+    
+    private final ConcurrentLinkedQueue<Ticket> arrivals = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable drain = this::drain;
+    //Wakes the matchmaker when the longest wait runs out.
+    private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(){
+        @Override
+        void expire(){
+            wake();
+        }
+    };
+    //only used by the drain.
+    private final Map<Integer,ArrayDeque<Ticket>> waiting = new HashMap<>(); //by game size, oldest first.
+    private int matches = 0;
+    
+    /**
+     * A player waiting for a match.
+     */
+    static class Ticket {
+        final ClientThread client;
+        final int players;      //game size asked for.
+        final long queuedAt = System.currentTimeMillis();
+        volatile boolean cancelled = false; //set if the client leaves first.
+        
+        Ticket(ClientThread client, int players){
+            this.client = client;
+            this.players = players;
+        }
+    }
+    
+    /**
+     * Queues a player, never blocks. The client is told through matched.
+     * @param players is the game size they want.
+     */
+    Ticket enqueue(ClientThread c, int players){
+        Ticket t = new Ticket(c, players);
+        arrivals.offer(t);
+        wake();
+        return t;
+    }
+    
+    private void wake(){
+        if(scheduled.compareAndSet(false, true))
+            GameServer.gameExecutor.execute(drain);
+    }
+    
+    private void drain(){
+        Ticket t;
+        while((t = arrivals.poll()) != null){
+            if(t.cancelled)
+                continue;
+            ArrayDeque<Ticket> q = waiting.computeIfAbsent(t.players, k -> new ArrayDeque<>());
+            q.add(t);
+            if(q.size() >= t.players){
+                q.removeIf(w -> w.cancelled);
+                if(q.size() >= t.players)
+                    start(q, t.players, t.players);
+            }
+        }
+        startLate();
+        scheduled.set(false);
+        //something may have been queued after the last poll.
+        if(!arrivals.isEmpty())
+            wake();
+    }
+    
+    //starts short games for players who have waited long enough, or fills 
+    //them up with bots when the server runs with -bots, and sets the timer 
+    //for the next ones.
+    private void startLate(){
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for(Map.Entry<Integer,ArrayDeque<Ticket>> e: waiting.entrySet()){
+            ArrayDeque<Ticket> q = e.getValue();
+            q.removeIf(w -> w.cancelled);
+            if(q.isEmpty() || (q.size() < 2 && !GameServer.bots))
+                continue;
+            long due = q.peek().queuedAt + MAX_WAIT;
+            if(due > now)
+                next = Math.min(next, due);
+            else if(GameServer.bots)
+                start(q, q.size(), e.getKey());
+            else
+                start(q, q.size(), q.size());
+        }
+        if(next != Long.MAX_VALUE)
+            GameServer.timers.schedule(timeout, next - now);
+    }
+    
+    //creates a game of size players for the first n waiting players, the 
+    //rest of the seats go to bots.
+    private void start(ArrayDeque<Ticket> q, int n, int size){
+        String name;
+        Game g;
+        do{//reserve the name in the game list, so a game created with C can't take it too.
+            name = "match-" + ++matches;
+            g = new Game(name, size, GameServer.HP, GameServer.SCAN_DISTANCE, GameServer.HIT_DAMAGE,
+                    GameServer.SCAN_NEAR_SHIP, GameServer.turnTime, GameServer.boardSize);
+        }while(GameServer.activeGames.containsKey(name) || GameServer.gameList.putIfAbsent(name, g) != null);
+        for(int i = 0; i < n; i++)
+            q.poll().client.matched(g);//joins, unless it has just disconnected.
+        for(int i = n; i < size; i++)
+            Bot.join(g, null);
+        g.startMatch();//in case one did.
+        debug.printf("Matched %d players into (%s)\n",n,name);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A decoded client message.
+ * One instance is reused for every message read on a connection, and its 
+ * text field points into the decoders buffer, so handlers must not hold on 
+ * to it. Decoding a message allocates nothing, the text is only copied into 
+ * a String when a handler asks for it.
+ */
+class Message {
+    char type;      //message header, 0 for a blank message.
+    int x = -1;     //x coordinate, move direction, or capability version.
+    int y = -1;     //y coordinate.
+    //username, game name, or heartbeat string.
+    byte[] data;
+    int textStart;
+    int textLength;
+    
+    void clear(){
+        type = 0;
+        x = -1;
+        y = -1;
+        data = null;
+        textLength = 0;
+    }
+    
+    void setText(byte[] data, int start, int length){
+        this.data = data;
+        this.textStart = start;
+        this.textLength = length;
+    }
+    
+    /**
+     * @return a copy of the text field.
+     */
+    String text(){
+        if(data == null)
+            return "";
+        return new String(data, textStart, textLength, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Compares the text field without copying it.
+     * @param other is the encoded string to compare with, may be null.
+     */
+    boolean textEquals(byte[] other){
+        if(other == null || data == null)
+            return false;
+        return Arrays.equals(data, textStart, textStart + textLength, other, 0, other.length);
+    }
+}
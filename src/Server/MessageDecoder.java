@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes received from a client into messages.
+ * 
+ * Text messages are a header char and its fields terminated by a line feed, 
+ * as described in the RFC. Once binary mode has been negotiated each message
+ * is a frame instead: 
+ *   [length: 2 bytes, big endian][header: 1 byte][fields]
+ * where length counts the header and fields. Integer fields are unsigned 
+ * varints (7 bits per byte, low bits first), and a message with a single 
+ * string field (L, C, H, V, U) carries it as the rest of the frame.
+ * The server sends frames too long for the length as 0xffff followed by 
+ * a 4 byte length, clients never do.
+ * Text coordinates are either two single digits, S12, or two decimals 
+ * separated by a comma for boards larger than 10x10, S120,45. A queue 
+ * request carries an optional player count, J or J12.
+ * In either format the bytes after the header are also kept as the message 
+ * text, the admin console reads its commands that way.
+ * 
+ * Both formats are parsed in place, decoding does not allocate.
+ */
+class MessageDecoder {
+    static final int BUFFER_SIZE = 1024; //longest message we will accept.
+    
+    //Received bytes, kept in write mode between calls.
+    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean binary = false;
+    private int cursor; //read position inside the current message.
+    private int end;    //end of the current message.
+    
+    void setBinary(boolean binary){
+        this.binary = binary;
+    }
+    
+    /**
+     * Reads what is available from a blocking stream into the buffer.
+     * @return false if the stream is closed.
+     */
+    boolean readFrom(InputStream in) throws IOException{
+        int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if(n < 0)
+            return false;
+        GameServer.metrics.bytesIn.add(n);
+        buffer.position(buffer.position() + n);
+        return true;
+    }
+    
+    /**
+     * Decodes the next complete message, the buffer must be flipped first.
+     * @param m is filled in with the message.
+     * @return false if there is no complete message left in the buffer.
+     */
+    boolean next(Message m){
+        m.clear();
+        return binary ? nextFrame(m) : nextLine(m);
+    }
+    
+    private boolean nextLine(Message m){
+        int start = buffer.position();
+        int nl = -1;
+        for(int i = start; i < buffer.limit(); i++){
+            if(buffer.get(i) == '\n'){
+                nl = i;
+                break;
+            }
+        }
+        if(nl < 0)
+            return false;
+        buffer.position(nl + 1);
+        end = nl;
+        if(end > start && buffer.get(end - 1) == '\r')
+            end--;
+        if(end == start)
+            return true; //blank message
+        cursor = start + 1;
+        m.type = (char)(buffer.get(start) & 0xff);
+        //the admin console reads every message as text, fields or not.
+        m.setText(buffer.array(), cursor, end - cursor);
+        switch(m.type){
+            case ClientThread.START:
+            case ClientThread.FIRE:
+            case ClientThread.SCAN:
+                if(end - cursor == 2){
+                    m.x = digit(cursor);
+                    m.y = digit(cursor + 1);
+                }else{
+                    m.x = decimal();
+                    if(cursor < end && buffer.get(cursor++) == ',')
+                        m.y = decimal();
+                    if(cursor != end)
+                        m.x = m.y = -1;
+                }
+                break;
+            case ClientThread.MOVE:
+            case ClientThread.CAPABILITIES:
+                if(end - cursor == 1)
+                    m.x = digit(cursor);
+                break;
+            case ClientThread.QUEUE:
+                if(cursor < end)
+                    m.x = decimal();
+                break;
+            default:
+                //the text is all there is.
+        }
+        return true;
+    }
+    
+    private boolean nextFrame(Message m){
+        int start = buffer.position();
+        if(buffer.limit() - start < 2)
+            return false;
+        int len = buffer.getShort(start) & 0xffff;
+        if(buffer.limit() - start - 2 < len)
+            return false;
+        buffer.position(start + 2 + len);
+        if(len == 0)
+            return true; //blank message
+        cursor = start + 2;
+        end = cursor + len;
+        m.type = (char)buffer.get(cursor++);
+        m.setText(buffer.array(), cursor, end - cursor);
+        switch(m.type){
+            case ClientThread.START:
+            case ClientThread.FIRE:
+            case ClientThread.SCAN:
+                m.x = varint();
+                m.y = varint();
+                break;
+            case ClientThread.MOVE:
+            case ClientThread.CAPABILITIES:
+                m.x = varint();
+                break;
+            case ClientThread.QUEUE:
+                if(cursor < end)
+                    m.x = varint();
+                break;
+            default:
+                //the text is all there is.
+        }
+        return true;
+    }
+    
+    //ascii digit at index i, -1 if it is not a digit.
+    private int digit(int i){
+        int d = buffer.get(i) - '0';
+        return d >= 0 && d <= 9 ? d : -1;
+    }
+    
+    //reads ascii digits up to the next non digit, -1 if there are none or too many.
+    private int decimal(){
+        int start = cursor;
+        int value = 0;
+        while(cursor < end && digit(cursor) >= 0)
+            value = value * 10 + digit(cursor++);
+        return cursor > start && cursor - start <= 9 ? value : -1;
+    }
+    
+    //reads a unsigned varint, -1 if the frame ends first.
+    private int varint(){
+        int value = 0;
+        for(int shift = 0; cursor < end && shift < 32; shift += 7){
+            byte b = buffer.get(cursor++);
+            value |= (b & 0x7f) << shift;
+            if(b >= 0)
+                return value;
+        }
+        return -1;
+    }
+}
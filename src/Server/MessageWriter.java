@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Encodes server to client messages for one connection.
+ * Each message is encoded into a buffer owned by the writer and handed to 
+ * the socket in a single write, so a message costs one syscall and messages
+ * from different threads never interleave. Fixed messages are encoded once
+ * and shared by every writer.
+ */
+abstract class MessageWriter {
+    //Outgoing message headers
+    static final char WELCOME = 'W';
+    static final char NEWGAME = 'N';
+    static final char AVAILABLE_GAMES = 'A';
+    static final char GAME_LIST_DELTA = 'D'; //binary only
+    static final char ERROR = 'X';
+    static final char HEARTBEAT = 'H';
+    static final char CAPABILITIES = 'K';
+    static final char START_OF_GAME = 'B';
+    static final char START_OF_TURN = 'T';
+    static final char END_OF_TURN = 'E';
+    static final char END_OF_GAME = 'O';
+    static final char BOARD = 'R';           //spectators, board summary each turn
+    static final char RESUME = 'U';          //U[token], reconnect with U[token] to resume.
+    static final char START_LOCATION = 'S';  //start location the server picked at the deadline.
+    
+    //NewGame results
+    static final int NEWGAME_JOIN = 0;
+    static final int NEWGAME_CREATE = 1;
+    static final int NEWGAME_ERROR = 2;
+    static final int NEWGAME_WATCH = 3;     //now spectating
+    //Error codes
+    static final int LOGIN_ERROR = 1;
+    static final int RESUME_ERROR = 2;      //unknown or expired resume token.
+    
+    private static final int INITIAL_BUFFER = 64;
+    private static final PrintStream error = System.out;
+    
+    private final OutputStream out;
+    Metrics metrics; //counts what is sent, null for writers that only pre-encode.
+    //not synchronized, a virtual thread blocked in write must not pin its carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+    byte[] buf = new byte[INITIAL_BUFFER]; //message being encoded.
+    int len;
+    
+    MessageWriter(OutputStream out){
+        this.out = out;
+    }
+    
+    abstract void welcome(String message);
+    abstract void newGame(int result);
+    abstract void error(int code);
+    abstract void gameList(Iterable<String> games);
+    /**
+     * Sends a published lobby version.
+     * @param snapshot is the full list.
+     * @param delta is the change from the previous version, may be null.
+     * @param knownVersion is the last version this client was sent.
+     */
+    abstract void gameList(Lobby.Snapshot snapshot, Lobby.Delta delta, long knownVersion);
+    abstract void heartbeat(String message);
+    /**
+     * Echos a heartbeat string without decoding it.
+     */
+    abstract void heartbeat(byte[] text, int off, int length);
+    abstract void capabilities(int version);
+    abstract void resume(String token);
+    abstract void startOfGame(String[] opponents);
+    /**
+     * Sends the shared battle royale roster.
+     */
+    abstract void startOfGame(Game.Roster roster);
+    /**
+     * Tells a player the start location picked for them when they did not 
+     * choose one before the deadline.
+     */
+    abstract void startLocation(int x, int y);
+    abstract void startOfTurn(int hp);
+    /**
+     * @param hit is true if the players shot hit.
+     * @param scanHits holds the x,y pairs of each scan hit.
+     * @param offset is the index of the first x.
+     * @param count is the number of pairs.
+     */
+    abstract void endOfTurn(boolean hit, int[] scanHits, int offset, int count);
+    abstract void endOfGame(boolean win);
+    /**
+     * @param turn is the number of turns played.
+     * @param names are the players in the game.
+     * @param players holds the x,y,hp of each player.
+     * @param count is the number of players.
+     */
+    abstract void board(int turn, String[] names, int[] players, int count);
+    /**
+     * Sends a board summary encoded once for every spectator.
+     */
+    abstract void board(Game.Summary summary);
+    
+    /**
+     * @param message is a encoded message.
+     * @return the index of its header byte.
+     */
+    int headerAt(byte[] message){
+        return 0;
+    }
+    
+    /**
+     * Starts a new message, locks the buffer until send is called.
+     */
+    final void begin(){
+        lock.lock();
+        len = 0;
+    }
+    
+    /**
+     * Writes the encoded message and releases the buffer.
+     */
+    final void send(){
+        try{
+            out.write(buf, 0, len);
+            out.flush();
+            if(metrics != null)
+                metrics.sent(buf[headerAt(buf)], len);
+        }catch (IOException e){
+            //the reading thread will see the closed connection and clean up.
+            error.println("IOException writing message.");
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes a pre-encoded message. The array is written or queued as is, 
+     * so one message shared by many writers is never copied.
+     */
+    final void send(byte[] message){
+        lock.lock();
+        try{
+            if(out instanceof QueuedOutputStream)
+                ((QueuedOutputStream)out).writeShared(message);
+            else if(out instanceof ChannelOutputStream)
+                ((ChannelOutputStream)out).writeShared(message);
+            else
+                out.write(message);
+            out.flush();
+            if(metrics != null && message.length > headerAt(message))
+                metrics.sent(message[headerAt(message)], message.length);
+        }catch (IOException e){
+            error.println("IOException writing message.");
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    final void put(int b){
+        if(len == buf.length)
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        buf[len++] = (byte)b;
+    }
+    
+    final void put(byte[] b, int off, int length){
+        if(len + length > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + length));
+        System.arraycopy(b, off, buf, len, length);
+        len += length;
+    }
+    
+    //writes a string as utf-8 without creating a byte array.
+    final void putString(String s){
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c < 0x80){
+                put(c);
+            }else if(c < 0x800){
+                put(0xc0 | (c >> 6));
+                put(0x80 | (c & 0x3f));
+            }else if(Character.isSurrogate(c)){
+                put('?'); //not expected in usernames or game names.
+            }else{
+                put(0xe0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3f));
+                put(0x80 | (c & 0x3f));
+            }
+        }
+    }
+    
+    //number of bytes putString will write.
+    static int utf8Length(String s){
+        int n = 0;
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c < 0x80 || Character.isSurrogate(c))
+                n += 1;
+            else if(c < 0x800)
+                n += 2;
+            else
+                n += 3;
+        }
+        return n;
+    }
+    
+    //writes a int as ascii decimal digits.
+    final void putDecimal(int value){
+        long v = value;
+        if(v < 0){
+            put('-');
+            v = -v;
+        }
+        int start = len;
+        do{ //digits come out backwards, reverse them after.
+            put((int)('0' + v % 10));
+            v /= 10;
+        }while(v > 0);
+        for(int i = start, j = len - 1; i < j; i++, j--){
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+    
+    static byte[] ascii(String s){
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
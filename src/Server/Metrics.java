@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms for running the server.
+ * 
+ * Recording is cheap enough to do on every message. Counters are 
+ * LongAdders, striped across cells so threads adding at once don't 
+ * contend on one cache line. Histograms are log-linear like HdrHistogram: 
+ * each power of two is split into SUB_BUCKETS atomic counts, so recording 
+ * is one add and the error is under 1/SUB_BUCKETS of the value.
+ * 
+ * What the server already tracks, connections by state and the number of 
+ * games, is read when a snapshot is taken instead of being counted on 
+ * every change.
+ */
+class Metrics {
+    static final int TYPES = 128; //message headers are ascii.
+    
+    final LongAdder[] messagesIn = adders(TYPES);  //by header.
+    final LongAdder[] messagesOut = adders(TYPES);
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder connections = new LongAdder(); //accepted since start.
+    final Histogram turnTime = new Histogram();    //nanoseconds from SOT to EOT.
+    final Histogram heartbeatRtt = new Histogram();//nanoseconds to answer a heartbeat.
+    
+    private static LongAdder[] adders(int n){
+        LongAdder[] a = new LongAdder[n];
+        for(int i = 0; i < n; i++)
+            a[i] = new LongAdder();
+        return a;
+    }
+    
+    /**
+     * A message was decoded.
+     */
+    void received(char type){
+        if(type < TYPES)
+            messagesIn[type].increment();
+    }
+    
+    /**
+     * A message was written.
+     * @param type is its header byte.
+     * @param bytes is its length on the wire.
+     */
+    void sent(int type, int bytes){
+        messagesOut[type & (TYPES - 1)].increment();
+        bytesOut.add(bytes);
+    }
+    
+    /**
+     * A lock free histogram of non negative longs.
+     */
+    static class Histogram {
+        static final int SUB_BITS = 4;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+        static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        
+        void record(long value){
+            if(value < 0)
+                value = 0;
+            counts.incrementAndGet(bucket(value));
+            sum.add(value);
+            max.accumulate(value);
+        }
+        
+        //values below SUB_BUCKETS have a bucket each, above that each power 
+        //of two gets SUB_BUCKETS buckets.
+        static int bucket(long value){
+            if(value < SUB_BUCKETS)
+                return (int)value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            return (exp - SUB_BITS + 1) * SUB_BUCKETS + (int)((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+        }
+        
+        //the largest value that lands in bucket i.
+        static long upperBound(int i){
+            if(i < SUB_BUCKETS)
+                return i;
+            int exp = i / SUB_BUCKETS + SUB_BITS - 1;
+            long low = (long)(SUB_BUCKETS + i % SUB_BUCKETS) << (exp - SUB_BITS);
+            return low + (1L << (exp - SUB_BITS)) - 1;
+        }
+        
+        /**
+         * Copies the counts, while recording goes on.
+         */
+        HistogramSnapshot snapshot(){
+            long[] c = new long[BUCKETS];
+            long n = 0;
+            for(int i = 0; i < BUCKETS; i++)
+                n += c[i] = counts.get(i);
+            return new HistogramSnapshot(c, n, sum.sum(), max.get());
+        }
+    }
+    
+    /**
+     * A histograms counts at one moment.
+     */
+    static class HistogramSnapshot {
+        final long[] counts;
+        final long count;
+        final long sum;
+        final long max;
+        
+        HistogramSnapshot(long[] counts, long count, long sum, long max){
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+        
+        /**
+         * @return how many values are in buckets that end at or below value.
+         */
+        long countAtMost(long value){
+            long n = 0;
+            for(int i = 0; i < counts.length && Histogram.upperBound(i) <= value; i++)
+                n += counts[i];
+            return n;
+        }
+        
+        /**
+         * @param q is the quantile, 0.99 for the 99th percentile.
+         * @return the upper bound of the bucket holding it, 0 if empty.
+         */
+        long quantile(double q){
+            long rank = (long)Math.ceil(q * count);
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++){
+                seen += counts[i];
+                if(seen >= rank && seen > 0)
+                    return Math.min(Histogram.upperBound(i), max);
+            }
+            return 0;
+        }
+    }
+    
+    /**
+     * Everything at one moment, including the gauges read from the server.
+     */
+    class Snapshot {
+        final long time = System.currentTimeMillis();
+        final long[] in = new long[TYPES];
+        final long[] out = new long[TYPES];
+        final long bytesIn = Metrics.this.bytesIn.sum();
+        final long bytesOut = Metrics.this.bytesOut.sum();
+        final long accepted = connections.sum();
+        final int[] states = new int[10]; //connections by ClientThread state.
+        final int waiting = GameServer.gameList == null ? 0 : GameServer.gameList.size();
+        final int active = GameServer.activeGames == null ? 0 : GameServer.activeGames.size();
+        final HistogramSnapshot turns = turnTime.snapshot();
+        final HistogramSnapshot heartbeats = heartbeatRtt.snapshot();
+        
+        Snapshot(){
+            for(int i = 0; i < TYPES; i++){
+                in[i] = messagesIn[i].sum();
+                out[i] = messagesOut[i].sum();
+            }
+            for(ClientThread c: GameServer.sessions.connections()){
+                int s = c.state();
+                if(s >= 0 && s < states.length)
+                    states[s]++;
+            }
+        }
+        
+        /**
+         * Writes the snapshot for a person to read.
+         */
+        void print(PrintStream p){
+            p.printf("connections: %d accepted, by state", accepted);
+            for(int i = 0; i < states.length; i++)
+                if(states[i] > 0)
+                    p.printf(" %d:%d", i, states[i]);
+            p.printf("\ngames: %d waiting, %d active\n", waiting, active);
+            p.printf("bytes: %d in, %d out\nmessages in:", bytesIn, bytesOut);
+            for(int i = 0; i < TYPES; i++)
+                if(in[i] > 0)
+                    p.printf(" %c:%d", (char)i, in[i]);
+            p.print("\nmessages out:");
+            for(int i = 0; i < TYPES; i++)
+                if(out[i] > 0)
+                    p.printf(" %c:%d", (char)i, out[i]);
+            p.println();
+            printHistogram(p, "turn time", turns);
+            printHistogram(p, "heartbeat rtt", heartbeats);
+        }
+        private void printHistogram(PrintStream p, String name, HistogramSnapshot h){
+            p.printf("%s: %d, p50 %.2fms p99 %.2fms max %.2fms\n", name, h.count, 
+                    h.quantile(0.5) / 1e6, h.quantile(0.99) / 1e6, h.max / 1e6);
+        }
+    }
+    
+    Snapshot snapshot(){
+        return new Snapshot();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves /metrics in the Prometheus text format, and /health, over HTTP on 
+ * the loopback interface only.
+ * 
+ * A snapshot of GameServer.metrics is rendered every INTERVAL on this 
+ * classes own thread, and a scrape just writes the last rendered bytes, 
+ * so scraping as often as every INTERVAL never touches the counters or 
+ * the game threads. /health is 200 while the accept loop keeps coming 
+ * round, 503 once it has stalled for ACCEPT_STALL or the server is 
+ * shutting down.
+ */
+class MetricsEndpoint implements Runnable {
+    static final int INTERVAL = 1000;     //milliseconds between snapshots.
+    static final int ACCEPT_STALL = 3 * GameServer.SOCKET_TIMEOUT; //accept loop is unhealthy after this.
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    //histogram bucket bounds in seconds, for both turn times and heartbeats.
+    static final String[] BOUNDS = {"0.0005", "0.001", "0.005", "0.01", "0.05", "0.1", "0.5", 
+            "1", "5", "15", "30"};
+    //ClientThread states, by number.
+    static final String[] STATES = {"login", "lobby", "joining", "placing", "playing", 
+            "over", "watching", "queued", null, "admin"};
+    private static final PrintStream error = System.out;
+    
+    private final HttpServer http;
+    private volatile byte[] metrics = new byte[0]; //last rendered snapshot.
+    
+    /**
+     * @param port is the port to listen on, on the loopback address.
+     */
+    MetricsEndpoint(int port) throws IOException{
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", e -> reply(e, 200, CONTENT_TYPE, metrics));
+        http.createContext("/health", this::health);
+    }
+    
+    void start(){
+        render();
+        Thread t = new Thread(this, "metrics");
+        t.setDaemon(true);
+        t.start();
+        http.start();
+    }
+    
+    /**
+     * Stops serving, the HTTP servers thread would keep the JVM running.
+     */
+    void stop(){
+        http.stop(0);
+    }
+    
+    @Override
+    public void run(){
+        while(true){
+            try{
+                Thread.sleep(INTERVAL);
+            }catch (InterruptedException e){
+                return;
+            }
+            render();
+        }
+    }
+    
+    private void health(HttpExchange e) throws IOException{
+        long stalled = System.currentTimeMillis() - GameServer.acceptLoopAt;
+        if(GameServer.shutdown)
+            reply(e, 503, "text/plain", "shutting down\n".getBytes(StandardCharsets.US_ASCII));
+        else if(stalled > ACCEPT_STALL)
+            reply(e, 503, "text/plain", ("accept loop stalled for " + stalled + "ms\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+        else
+            reply(e, 200, "text/plain", "ok\n".getBytes(StandardCharsets.US_ASCII));
+    }
+    
+    private static void reply(HttpExchange e, int status, String type, byte[] body) throws IOException{
+        try(OutputStream out = e.getResponseBody()){
+            e.getResponseHeaders().set("Content-Type", type);
+            if(e.getRequestMethod().equals("HEAD")){
+                e.sendResponseHeaders(status, -1);
+                return;
+            }
+            e.sendResponseHeaders(status, body.length);
+            out.write(body);
+        }
+    }
+    
+    //renders a new snapshot for the next scrapes.
+    private void render(){
+        try{
+            Metrics.Snapshot s = GameServer.metrics.snapshot();
+            StringBuilder b = new StringBuilder(4096);
+            byType(b, "jgp_messages_received_total", "Messages received from clients, by header.", s.in);
+            byType(b, "jgp_messages_sent_total", "Messages sent to clients, by header.", s.out);
+            counter(b, "jgp_received_bytes_total", "Bytes received from clients.", s.bytesIn);
+            counter(b, "jgp_sent_bytes_total", "Bytes of messages sent to clients.", s.bytesOut);
+            counter(b, "jgp_connections_accepted_total", "Connections accepted since start.", s.accepted);
+            header(b, "jgp_connections", "Open connections, by session state.", "gauge");
+            for(int i = 0; i < STATES.length; i++)
+                if(STATES[i] != null)
+                    b.append("jgp_connections{state=\"").append(STATES[i]).append("\"} ")
+                            .append(s.states[i]).append('\n');
+            header(b, "jgp_games", "Games waiting for players, and started.", "gauge");
+            b.append("jgp_games{status=\"waiting\"} ").append(s.waiting).append('\n');
+            b.append("jgp_games{status=\"active\"} ").append(s.active).append('\n');
+            histogram(b, "jgp_turn_duration_seconds", "Time from the start to the end of a turn.", s.turns);
+            histogram(b, "jgp_heartbeat_rtt_seconds", "Time for a client to answer a heartbeat.", s.heartbeats);
+            metrics = b.toString().getBytes(StandardCharsets.UTF_8);
+        }catch (RuntimeException e){//keep serving the last one.
+            error.println("ERROR: rendering metrics failed: " + e);
+        }
+    }
+    
+    private static void header(StringBuilder b, String name, String help, String type){
+        b.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void counter(StringBuilder b, String name, String help, long value){
+        header(b, name, help, "counter");
+        b.append(name).append(' ').append(value).append('\n');
+    }
+    
+    //one sample for each header seen.
+    private static void byType(StringBuilder b, String name, String help, long[] counts){
+        header(b, name, help, "counter");
+        for(int i = 0; i < counts.length; i++){
+            if(counts[i] == 0)
+                continue;
+            b.append(name).append("{type=\"");
+            if(i == '"' || i == '\\')
+                b.append('\\');
+            if(i >= ' ' && i < 127)
+                b.append((char)i);
+            else
+                b.append(i);
+            b.append("\"} ").append(counts[i]).append('\n');
+        }
+    }
+    
+    //recorded in nanoseconds, exported in seconds. A bucket counts what 
+    //the log-linear histogram holds below its bound, within its error.
+    private static void histogram(StringBuilder b, String name, String help, Metrics.HistogramSnapshot h){
+        header(b, name, help, "histogram");
+        for(String bound: BOUNDS)
+            b.append(name).append("_bucket{le=\"").append(bound).append("\"} ")
+                    .append(h.countAtMost((long)(Double.parseDouble(bound) * 1e9))).append('\n');
+        b.append(name).append("_bucket{le=\"+Inf\"} ").append(h.count).append('\n');
+        b.append(name).append("_sum ").append(h.sum / 1e9).append('\n');
+        b.append(name).append("_count ").append(h.count).append('\n');
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking connection server.
+ * Accepts connections on the calling thread and hands them round robin to a 
+ * fixed set of selector threads, which read JGP messages and pass them to the
+ * ClientThread attached to each channel.
+ */
+class NioServer implements Closeable {
+    private static final PrintStream error = System.out;
+    
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final IoLoop[] loops;
+    private int nextLoop = 0;
+    
+    /**
+     * Opens the listening socket and starts the selector threads.
+     * @param portNumber is the port to listen on.
+     * @param ioThreads is the number of selector threads.
+     */
+    NioServer(int portNumber, int ioThreads) throws IOException{
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(portNumber));
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        loops = new IoLoop[ioThreads];
+        for(int i = 0; i < ioThreads; i++){
+            loops[i] = new IoLoop();
+            Thread t = new Thread(loops[i], "nio-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+    
+    /**
+     * Accepts any pending connections.
+     * @param timeout is the longest time to wait for a connection in milliseconds.
+     */
+    void accept(long timeout) throws IOException{
+        if(acceptSelector.select(timeout) == 0)
+            return;
+        acceptSelector.selectedKeys().clear();
+        SocketChannel channel;
+        while((channel = serverChannel.accept()) != null){
+            loops[nextLoop].register(channel);
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException{
+        for(IoLoop loop: loops)
+            loop.shutdown();
+        acceptSelector.close();
+        serverChannel.close();
+    }
+    
+    /**
+     * Selector thread, services reads and pending writes for its channels.
+     */
+    static class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue();
+        private final Queue<SelectionKey> closing = new ConcurrentLinkedQueue();
+        private volatile boolean running = true;
+        
+        IoLoop() throws IOException{
+            selector = Selector.open();
+        }
+        
+        void register(SocketChannel channel){
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+        
+        void shutdown(){
+            running = false;
+            selector.wakeup();
+        }
+        
+        //ask for a OP_WRITE event, called by any thread that could not finish a write.
+        void requestWrite(SelectionKey key){
+            if(key.isValid()){
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                selector.wakeup();
+            }
+        }
+        
+        //clean up a connection on the selector thread, like an EOF, called by 
+        //any thread that dropped a client for not reading.
+        void requestClose(SelectionKey key){
+            closing.add(key);
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run(){
+            try{
+                while(running){
+                    selector.select();
+                    registerNewChannels();
+                    closeRequested();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection c = (Connection)key.attachment();
+                        try{
+                            if(key.isValid() && key.isWritable())
+                                c.out.flushPending();
+                            if(key.isValid() && key.isReadable())
+                                c.read();
+                        }catch (IOException e){
+                            c.close();
+                        }catch (RuntimeException e){
+                            //a bad message must not take down the whole selector thread.
+                            error.println("ERROR: " + e + " handling message, closing connection.");
+                            c.close();
+                        }
+                    }
+                }
+                selector.close();
+            }catch (IOException e){
+                error.println("IOException in NioServer selector thread, closing thread.");
+            }
+        }
+        
+        private void closeRequested(){
+            SelectionKey key;
+            while((key = closing.poll()) != null)
+                ((Connection)key.attachment()).close();
+        }
+        
+        private void registerNewChannels(){
+            SocketChannel channel;
+            while((channel = newChannels.poll()) != null){
+                try{
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection c = new Connection(channel, key, this);
+                    key.attach(c);
+                    GameServer.sessions.add(c.client);
+                    c.client.sendWelcome();
+                }catch (IOException e){
+                    error.println("IOException registering a new channel.");
+                    try{
+                        channel.close();
+                    }catch (IOException ce){
+                        //ignore, nothing left to clean up.
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Per channel state, the output queue and the clients session.
+     */
+    static class Connection {
+        final SocketChannel channel;
+        final ChannelOutputStream out;
+        final ClientThread client;
+        
+        Connection(SocketChannel channel, SelectionKey key, IoLoop loop){
+            this.channel = channel;
+            this.out = new ChannelOutputStream(channel, key, loop);
+            this.client = new ClientThread(channel.socket(), out);
+        }
+        
+        //read what is available and pass the complete messages to the client.
+        void read() throws IOException{
+            int n = channel.read(client.decoder.buffer);
+            if(n < 0){ //client closed the connection
+                close();
+                return;
+            }
+            GameServer.metrics.bytesIn.add(n);
+            if(!client.handleInput()) //client quit
+                close();
+        }
+        
+        void close(){
+            client.channelClosed();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * OutputStream over a blocking socket that never blocks the caller.
+ * Writes are queued and a drain task on the executor writes them to the 
+ * socket, so games, timers and the lobby only ever enqueue, like 
+ * ChannelOutputStream does in nio mode. A client that stops reading ties 
+ * up its own drain task and nothing else, and is dropped once MAX_PENDING 
+ * bytes are waiting.
+ * 
+ * Shared pre-encoded messages are queued by reference. The drain gathers 
+ * small messages into one socket write of up to BATCH bytes, larger ones 
+ * are written straight from their own array.
+ */
+class QueuedOutputStream extends OutputStream {
+    static final int MAX_PENDING = ChannelOutputStream.MAX_PENDING;
+    static final int BATCH = 8192; //bytes gathered into one socket write.
+    
+    private final OutputStream out; //only used by the drain task, one runs at a time.
+    private final Socket socket;
+    private final Executor executor;
+    //guarded by this
+    private final ArrayDeque<byte[]> pending = new ArrayDeque();
+    private int pendingBytes = 0;
+    private boolean draining = false;
+    private boolean closed = false;
+    
+    /**
+     * @param out is the sockets stream.
+     * @param socket is closed if the client falls too far behind.
+     * @param executor runs the drain task.
+     */
+    QueuedOutputStream(OutputStream out, Socket socket, Executor executor){
+        this.out = new BufferedOutputStream(out, BATCH);
+        this.socket = socket;
+        this.executor = executor;
+    }
+    
+    @Override
+    public void write(int b) throws IOException{
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException{
+        //caller may reuse the array, so queue a copy.
+        byte[] copy = new byte[len];
+        System.arraycopy(b, off, copy, 0, len);
+        queue(copy);
+    }
+    
+    /**
+     * Queues a message that is never changed, without copying it.
+     */
+    void writeShared(byte[] message) throws IOException{
+        queue(message);
+    }
+    
+    private synchronized void queue(byte[] b) throws IOException{
+        if(closed)
+            throw new IOException("socket closed");
+        if(pendingBytes + b.length > MAX_PENDING){
+            close();
+            throw new IOException("client is not reading, pending output limit reached");
+        }
+        pending.add(b);
+        pendingBytes += b.length;
+        if(!draining){
+            draining = true;
+            try{
+                executor.execute(this::drain);
+            }catch (RejectedExecutionException e){
+                draining = false;
+                close();
+                throw new IOException("server is shutting down");
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException{
+        if(closed)
+            return;
+        closed = true;
+        pending.clear();
+        pendingBytes = 0;
+        socket.close();//unblocks a drain stuck in write.
+    }
+    
+    //writes everything queued, small messages gathered into BATCH sized writes.
+    private void drain(){
+        while(true){
+            byte[][] batch;
+            synchronized(this){
+                if(closed || pending.isEmpty()){
+                    draining = false;
+                    return;
+                }
+                batch = pending.toArray(new byte[pending.size()][]);
+                pending.clear();
+                pendingBytes = 0;
+            }
+            try{
+                for(byte[] b: batch)
+                    out.write(b);
+                out.flush();
+            }catch (IOException e){
+                //the reading thread will see the closed socket and clean up.
+                try{
+                    close();
+                }catch (IOException ex){
+                    //already closed.
+                }
+            }
+        }
+    }
+}
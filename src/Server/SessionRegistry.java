@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All connected clients, and the usernames they have logged in with.
+ * Lookups, claims and releases are O(1) and lock free, and iterating the 
+ * connections is weakly consistent, so sweeps and broadcasts never block 
+ * logins or throw ConcurrentModificationException.
+ * 
+ * Clients may also hold a resume token. When a client holding one drops 
+ * out of a game its username stays taken and the token stays valid for 
+ * Game.GRACE, so a new connection can present the token and take over the 
+ * session and the games held slot.
+ */
+class SessionRegistry {
+    private final Map<String,ClientThread> users = new ConcurrentHashMap();
+    private final Set<ClientThread> connections = ConcurrentHashMap.newKeySet();
+    private final Map<String,Resume> tokens = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    
+    /**
+     * A resume token, expires GRACE after its client drops.
+     */
+    class Resume extends TimerWheel.Timeout {
+        final String token;
+        final String username;
+        final ClientThread owner; //the session it resumes.
+        volatile Game game;       //holding the owners slot, null if none.
+        
+        Resume(String token, String username, ClientThread owner){
+            this.token = token;
+            this.username = username;
+            this.owner = owner;
+        }
+        
+        @Override
+        void expire(){
+            if(tokens.remove(token, this))
+                users.remove(username, owner);
+        }
+    }
+    
+    /**
+     * Atomically takes a username for a client.
+     * @return false if the name is already in use.
+     */
+    boolean claim(String username, ClientThread c){
+        return users.putIfAbsent(username, c) == null;
+    }
+    
+    /**
+     * Frees a username, only if it is held by this client.
+     */
+    void release(String username, ClientThread c){
+        if(username != null)
+            users.remove(username, c);
+    }
+    
+    /**
+     * Gives a logged in client a new resume token.
+     * @return the token.
+     */
+    String issue(String username, ClientThread c){
+        byte[] b = new byte[16];
+        random.nextBytes(b);
+        Resume r = new Resume(Base64.getUrlEncoder().withoutPadding().encodeToString(b), username, c);
+        tokens.put(r.token, r);
+        return r.token;
+    }
+    
+    /**
+     * Keeps a dropped clients token and username for Game.GRACE.
+     * @param game is holding the clients slot.
+     * @return false if the token is no longer valid.
+     */
+    boolean hold(String token, Game game){
+        Resume r = tokens.get(token);
+        if(r == null)
+            return false;
+        r.game = game;
+        GameServer.timers.schedule(r, Game.GRACE);
+        return true;
+    }
+    
+    /**
+     * Uses up a token, moving its username to a new client. The old client 
+     * is disconnected if it is still connected, a half open connection the 
+     * server has not noticed yet, and the new client takes over its game.
+     * @return the redeemed token, or null if it is unknown or expired.
+     */
+    Resume redeem(String token, ClientThread c){
+        Resume r = tokens.remove(token);
+        if(r == null)
+            return null;
+        GameServer.timers.cancel(r);
+        if(!users.replace(r.username, r.owner, c) && !claim(r.username, c))
+            return null;//someone else has the name.
+        Game playing = r.owner.supersede();
+        if(r.game == null)//never dropped, so nothing is holding the slot.
+            r.game = playing;
+        return r;
+    }
+    
+    /**
+     * Drops a token that will not be used, does nothing for null.
+     */
+    void revoke(String token){
+        if(token == null)
+            return;
+        Resume r = tokens.remove(token);
+        if(r != null)
+            GameServer.timers.cancel(r);
+    }
+    
+    /**
+     * @return the client logged in as username, or null.
+     */
+    ClientThread get(String username){
+        return users.get(username);
+    }
+    
+    void add(ClientThread c){
+        connections.add(c);
+    }
+    
+    void remove(ClientThread c){
+        connections.remove(c);
+    }
+    
+    /**
+     * @return every connected client, weakly consistent.
+     */
+    Iterable<ClientThread> connections(){
+        return connections;
+    }
+    
+    int connectionCount(){
+        return connections.size();
+    }
+    
+    int userCount(){
+        return users.size();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Periodic snapshots of every game, for crash recovery.
+ * 
+ * Each game captures itself as one of its own actions, so games are 
+ * snapshotted one at a time while the rest keep playing, with at most 
+ * IN_FLIGHT captures queued at once. The snapshot is written next to the 
+ * journal and renamed into place once complete, so a crash while writing 
+ * leaves the previous one.
+ * 
+ * On restart the games in the last snapshot are restored and the journal 
+ * is replayed over them, from the SNAPSHOT event each game logged when it 
+ * was captured. Games created after the snapshot are rebuilt from the 
+ * journal alone.
+ */
+class Snapshots implements Runnable {
+    static final int INTERVAL = 30000; //milliseconds between snapshots.
+    static final int IN_FLIGHT = 1024; //games capturing at once.
+    static final int MAGIC = 0x4A475053;
+    static final String FILE = "snapshot";
+    private static final PrintStream debug = System.out;
+    private static final PrintStream error = System.out;
+    
+    private final Journal journal;
+    private final Path dir;
+    private int seq = 0;    //sequence number of the last snapshot.
+    
+    /**
+     * @param journal is the journal to replay, snapshots are kept in its directory.
+     */
+    Snapshots(Journal journal){
+        this.journal = journal;
+        this.dir = journal.dir();
+    }
+    
+    void start(){
+        Thread t = new Thread(this, "snapshot");
+        t.setDaemon(true);
+        t.start();
+    }
+    
+    @Override
+    public void run(){
+        while(true){
+            try{
+                Thread.sleep(INTERVAL);
+            }catch (InterruptedException e){
+                return;
+            }
+            try{
+                long start = System.nanoTime();
+                int games = take();
+                debug.printf("Snapshot %d of %d games took %dms\n", seq, games, 
+                        (System.nanoTime() - start) / 1000000);
+            }catch (IOException e){
+                error.println("ERROR: snapshot failed: " + e);
+            }
+        }
+    }
+    
+    /**
+     * Writes a snapshot of every game.
+     * @return the number of games written.
+     */
+    int take() throws IOException{
+        int s = seq + 1;
+        int segment = journal.segment();//read first, every SNAPSHOT event is in it or later.
+        Path tmp = dir.resolve(FILE + ".tmp");
+        int games = 0;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))){
+            out.writeInt(MAGIC);
+            out.writeInt(s);
+            out.writeInt(segment);
+            //a game moves to activeGames before it leaves gameList, so it is in at least one.
+            Set<Long> seen = new HashSet<>();
+            ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+            for(Map<String,Game> list: new Map[]{GameServer.gameList, GameServer.activeGames}){
+                for(Game g: list.values()){
+                    if(!seen.add(g.id))
+                        continue;
+                    pending.add(g.snapshot(s));
+                    if(pending.size() >= IN_FLIGHT)
+                        games += write(out, pending.poll().join());
+                }
+            }
+            while(!pending.isEmpty())
+                games += write(out, pending.poll().join());
+            out.writeInt(0);
+        }
+        Files.move(tmp, dir.resolve(FILE), StandardCopyOption.REPLACE_EXISTING, 
+                StandardCopyOption.ATOMIC_MOVE);
+        seq = s;
+        return games;
+    }
+    
+    private static int write(DataOutputStream out, byte[] game) throws IOException{
+        if(game == null)//ended before it was captured.
+            return 0;
+        out.writeInt(game.length);
+        out.write(game);
+        return 1;
+    }
+    
+    /**
+     * Restores the games from the last snapshot and the journal, and puts 
+     * them back in the game lists. Call before the journal is started.
+     * @return the number of games restored.
+     */
+    int recover() throws IOException{
+        Map<Long,Game> games = new HashMap<>();
+        Set<Long> waiting = new HashSet<>();//snapshot games whose SNAPSHOT event is still to come.
+        int from = 0;
+        Path file = dir.resolve(FILE);
+        if(Files.exists(file)){
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))){
+                if(in.readInt() != MAGIC)
+                    throw new IOException("not a snapshot: " + file);
+                seq = in.readInt();
+                from = in.readInt();
+                for(int length = in.readInt(); length > 0; length = in.readInt()){
+                    byte[] b = new byte[length];
+                    in.readFully(b);
+                    Game g = Game.read(new DataInputStream(new ByteArrayInputStream(b)));
+                    games.put(g.id, g);
+                    waiting.add(g.id);
+                }
+            }
+        }
+        long[] maxId = {0};
+        for(Path segment: Journal.segments(dir)){
+            if(Journal.index(segment) < from)
+                continue;
+            Journal.read(segment, e -> {
+                maxId[0] = Math.max(maxId[0], e.game);
+                Game g = games.get(e.game);
+                if(e.type == Journal.SNAPSHOT){
+                    if(e.fields[0] == seq)
+                        waiting.remove(e.game);
+                }else if(g == null){//only games created since the snapshot.
+                    if(e.type == Journal.CREATED)
+                        games.put(e.game, Game.created(e));
+                }else if(!waiting.contains(e.game))
+                    g.replay(e);
+            });
+        }
+        int restored = 0;
+        for(Game g: games.values()){
+            maxId[0] = Math.max(maxId[0], g.id);
+            if(g.state == 5 || g.currentPlayers == 0)
+                continue;
+            if(g.state <= 2){
+                GameServer.gameList.put(g.name, g);
+                GameServer.lobby.gameAdded(g.name);
+            }else
+                GameServer.activeGames.put(g.name, g);
+            g.resume();
+            restored++;
+        }
+        journal.reserveIds(maxId[0]);
+        return restored;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.OutputStream;
+
+/**
+ * Writes messages in the RFC's text format, one line per message.
+ */
+class TextMessageWriter extends MessageWriter {
+    private static final byte[] END_OF_GAME_WIN = ascii("O1\n");
+    private static final byte[] END_OF_GAME_LOSE = ascii("O0\n");
+    private static final byte[] NEWGAME_JOIN_MSG = ascii("N0\n");
+    private static final byte[] NEWGAME_CREATE_MSG = ascii("N1\n");
+    private static final byte[] NEWGAME_ERROR_MSG = ascii("N2\n");
+    private static final byte[] NEWGAME_WATCH_MSG = ascii("N3\n");
+    
+    TextMessageWriter(OutputStream out){
+        super(out);
+    }
+    
+    @Override
+    void welcome(String message){
+        begin();
+        put(WELCOME);
+        putString(message);
+        put('\n');
+        send();
+    }
+    @Override
+    void newGame(int result){
+        switch(result){
+            case NEWGAME_JOIN:
+                send(NEWGAME_JOIN_MSG);
+                break;
+            case NEWGAME_CREATE:
+                send(NEWGAME_CREATE_MSG);
+                break;
+            case NEWGAME_WATCH:
+                send(NEWGAME_WATCH_MSG);
+                break;
+            default:
+                send(NEWGAME_ERROR_MSG);
+        }
+    }
+    @Override
+    void error(int code){
+        begin();
+        put(ERROR);
+        putDecimal(code);
+        put('\n');
+        send();
+    }
+    @Override
+    void gameList(Iterable<String> games){
+        begin();
+        put(AVAILABLE_GAMES);
+        boolean first = true;
+        for(String game: games){
+            if(!first)
+                put(':');
+            putString(game);
+            first = false;
+        }
+        put('\n');
+        send();
+    }
+    @Override
+    void gameList(Lobby.Snapshot snapshot, Lobby.Delta delta, long knownVersion){
+        send(snapshot.text); //text clients only understand the full list.
+    }
+    @Override
+    void heartbeat(String message){
+        begin();
+        put(HEARTBEAT);
+        putString(message);
+        put('\n');
+        send();
+    }
+    @Override
+    void heartbeat(byte[] text, int off, int length){
+        begin();
+        put(HEARTBEAT);
+        put(text, off, length);
+        put('\n');
+        send();
+    }
+    @Override
+    void capabilities(int version){
+        begin();
+        put(CAPABILITIES);
+        putDecimal(version);
+        put('\n');
+        send();
+    }
+    @Override
+    void resume(String token){
+        begin();
+        put(RESUME);
+        putString(token);
+        put('\n');
+        send();
+    }
+    @Override
+    void startOfGame(String[] opponents){
+        begin();
+        put(START_OF_GAME);
+        for(int i = 0; i < opponents.length; i++){
+            if(i > 0)
+                put(':');
+            putString(opponents[i]);
+        }
+        put('\n');
+        send();
+    }
+    @Override
+    void startOfGame(Game.Roster roster){
+        send(roster.text);
+    }
+    //S[x][y], or S<x>,<y> on boards larger than 10x10.
+    @Override
+    void startLocation(int x, int y){
+        begin();
+        put(START_LOCATION);
+        putDecimal(x);
+        if(x > 9 || y > 9)
+            put(',');
+        putDecimal(y);
+        put('\n');
+        send();
+    }
+    @Override
+    void startOfTurn(int hp){
+        begin();
+        put(START_OF_TURN);
+        putDecimal(hp);
+        put('\n');
+        send();
+    }
+    //E[hit][count]{[x][y]}* while everything fits in one digit, otherwise 
+    //E[hit]{:x,y}* so large boards and crowded scans stay readable.
+    @Override
+    void endOfTurn(boolean hit, int[] scanHits, int offset, int count){
+        int end = offset + count * 2;
+        boolean digits = count <= 9;
+        for(int i = offset; digits && i < end; i++)
+            digits = scanHits[i] <= 9;
+        begin();
+        put(END_OF_TURN);
+        put(hit ? '1' : '0');
+        if(digits)
+            putDecimal(count);
+        for(int i = offset; i < end; i += 2){//add each x,y pair.
+            if(!digits)
+                put(':');
+            putDecimal(scanHits[i]);
+            if(!digits)
+                put(',');
+            putDecimal(scanHits[i + 1]);
+        }
+        put('\n');
+        send();
+    }
+    @Override
+    void endOfGame(boolean win){
+        send(win ? END_OF_GAME_WIN : END_OF_GAME_LOSE);
+    }
+    //R[turn]{:name,x,y,hp}*
+    @Override
+    void board(int turn, String[] names, int[] players, int count){
+        begin();
+        put(BOARD);
+        putDecimal(turn);
+        for(int i = 0; i < count; i++){
+            put(':');
+            putString(names[i]);
+            put(',');
+            putDecimal(players[i * 3]);
+            put(',');
+            putDecimal(players[i * 3 + 1]);
+            put(',');
+            putDecimal(players[i * 3 + 2]);
+        }
+        put('\n');
+        send();
+    }
+    @Override
+    void board(Game.Summary summary){
+        send(summary.text);
+    }
+}
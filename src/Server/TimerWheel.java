@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Server;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timing wheel.
+ * Timeouts are kept in a ring of slots, one slot per tick, so scheduling, 
+ * cancelling and expiring a timeout are all O(1) no matter how many are 
+ * pending. Timeouts further away than one turn of the wheel wait out the 
+ * extra turns in their slot. Expired timeouts run on the wheel's own thread, 
+ * so expire must only hand work off, it must never block or do I/O.
+ */
+class TimerWheel implements Runnable {
+    static final int TICK = 100;        //milliseconds per slot.
+    static final int WHEEL_SIZE = 512;  //slots, must be a power of two.
+    private static final int MASK = WHEEL_SIZE - 1;
+    private static final PrintStream error = System.out;
+    
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE]; //head of each slots list.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long startTime = System.nanoTime();
+    private long tick = 0;  //next tick to expire, guarded by lock.
+    private volatile boolean running = true;
+    
+    /**
+     * A task run by the wheel when its delay has passed.
+     */
+    abstract static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextExpired;
+        private int slot = -1;  //-1 when not scheduled.
+        private long rounds;    //extra turns of the wheel to wait.
+        
+        abstract void expire();
+    }
+    
+    void start(){
+        Thread t = new Thread(this, "timer-wheel");
+        t.setDaemon(true);
+        t.start();
+    }
+    
+    void shutdown(){
+        running = false;
+    }
+    
+    /**
+     * Schedules or reschedules a timeout.
+     * @param t is the timeout, any earlier schedule is replaced.
+     * @param delay is the time to wait in milliseconds.
+     */
+    void schedule(Timeout t, long delay){
+        long ticks = Math.max(1, (delay + TICK - 1) / TICK);
+        lock.lock();
+        try{
+            unlink(t);
+            long target = tick + ticks - 1;
+            t.rounds = (ticks - 1) / WHEEL_SIZE;
+            t.slot = (int)(target & MASK);
+            t.prev = null;
+            t.next = wheel[t.slot];
+            if(t.next != null)
+                t.next.prev = t;
+            wheel[t.slot] = t;
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Cancels a timeout, does nothing if it is not scheduled.
+     */
+    void cancel(Timeout t){
+        lock.lock();
+        try{
+            unlink(t);
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    private void unlink(Timeout t){
+        if(t.slot < 0)
+            return;
+        if(t.prev != null)
+            t.prev.next = t.next;
+        else
+            wheel[t.slot] = t.next;
+        if(t.next != null)
+            t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+        t.slot = -1;
+    }
+    
+    @Override
+    public void run(){
+        while(running){
+            try{
+                waitForTick();
+            }catch (InterruptedException e){
+                return;
+            }
+            Timeout expired = null;
+            lock.lock();
+            try{
+                Timeout t = wheel[(int)(tick & MASK)];
+                while(t != null){
+                    Timeout next = t.next;
+                    if(t.rounds > 0){
+                        t.rounds--;
+                    }else{
+                        unlink(t);
+                        t.nextExpired = expired;
+                        expired = t;
+                    }
+                    t = next;
+                }
+                tick++;
+            }finally{
+                lock.unlock();
+            }
+            //run outside the lock so timeouts can reschedule themselves.
+            while(expired != null){
+                Timeout t = expired;
+                expired = t.nextExpired;
+                t.nextExpired = null;
+                try{
+                    t.expire();
+                }catch (RuntimeException e){
+                    error.println("ERROR: " + e + " in timer task.");
+                }
+            }
+        }
+    }
+    
+    //sleeps until the end of the current tick.
+    private void waitForTick() throws InterruptedException{
+        long due = startTime + TimeUnit.MILLISECONDS.toNanos((tick + 1) * TICK);
+        long sleep;
+        while((sleep = due - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.sleep(sleep);
+    }
+}
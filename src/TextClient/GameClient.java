@@ -26,12 +26,18 @@ package TextClient;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /** 
  * Text based Game Client
@@ -42,17 +48,28 @@ public class GameClient {
     private static final String STRING_SEPARATOR = ":";
     private static final int HEARTBEAT_INTERVAL = 10000; 
     private static final long CONNECTION_TIMEOUT = 30000;
+    private static final int BINARY_VERSION = 1;
+    private static final int RECONNECT_TRIES = 5;
+    private static final int RECONNECT_DELAY = 2000;
+    private static final int RESUME_ERROR = 2;
+    static final int DEFAULT_BOARD = 10; //servers that do not say have the RFC's 10x10 board.
+    private static final Pattern BOARD_RULE = Pattern.compile("The board is (\\d{1,9})x");
     
     //incoming server messages
-    private static final char WELCOME = 'W';
-    private static final char NEW_GAME = 'N';
-    private static final char AVAILABLE_GAMES = 'A';
-    private static final char START_OF_GAME = 'B';
-    private static final char START_OF_TURN = 'T'; 
-    private static final char END_OF_GAME = 'O';
-    private static final char END_OF_TURN = 'E';
-    private static final char HEARTBEAT = 'H';
-    private static final char ERROR = 'X';
+    static final char WELCOME = 'W';
+    static final char NEW_GAME = 'N';
+    static final char AVAILABLE_GAMES = 'A';
+    static final char GAME_LIST_DELTA = 'D';
+    static final char START_OF_GAME = 'B';
+    static final char START_OF_TURN = 'T'; 
+    static final char END_OF_GAME = 'O';
+    static final char END_OF_TURN = 'E';
+    static final char HEARTBEAT = 'H';
+    static final char ERROR = 'X';
+    static final char CAPABILITIES = 'K';
+    static final char BOARD = 'R';
+    static final char RESUME = 'U';
+    static final char START_LOCATION = 'S';
 
     //Program control
     private static Boolean shutdown = false;
@@ -61,19 +78,27 @@ public class GameClient {
     //IO
     private final PrintStream out = System.out;
     //private final PrintStream debug = System.out;
-    private final MessageSender sender;
+    private MessageSender sender;       //replaced with in on a reconnect.
     private final BufferedReader stdIn;
-    private final BufferedReader in;
+    private MessageReader in;
+    private final boolean binary; //ask the server for binary messages.
     
     //Gamestate    
     private Integer state;
     private String username;
     private String gamename;
+    private boolean watching = false; //spectating gamename
+    private int matchSize = -1;         //players asked for with queue, -1 if not queueing.
+    private final Set<String> games = new LinkedHashSet<>(); //games waiting for players
     private String turnAction; //F|S|M
     private Integer targetCoordinates[];
     private Integer moveDir;
     private Integer hitpoints;
     private Integer[] location;
+    private int boardSize = DEFAULT_BOARD; //from the welcome message.
+    private String resumeToken;         //from the server, to get back in after a drop.
+    private boolean resuming = false;   //reconnected, resuming the session.
+    private volatile boolean reconnect = false; //set by the timer when the server stops answering.
     
     //Timers
     private String heartbeatMessage;//last heartbeat sent to server
@@ -82,11 +107,12 @@ public class GameClient {
     private TimerTask heartbeatTask; 
 
     
-    public GameClient(PrintWriter out, BufferedReader stdIn, BufferedReader in){
+    public GameClient(OutputStream out, BufferedReader stdIn, MessageReader in, boolean binary){
         this.state = 0;
         this.sender = new MessageSender(out); 
         this.stdIn = stdIn;
         this.in = in;
+        this.binary = binary;
         this.hitpoints = 0;
         this.location = new Integer[2]; 
         this.username = null;
@@ -95,30 +121,36 @@ public class GameClient {
     }
     /**
      * @param args the command line arguments
+     *        [host port] [-binary]
      */
     public static void main(String[] args) {
         String hostName = "127.0.0.1";
         int portNumber = 9001;
-        if(args.length == 2){
+        boolean binary = false;
+        if(args.length >= 2){
             portNumber = Integer.parseInt(args[1]);
             hostName = args[0];
         }
+        if(args.length > 0 && args[args.length - 1].equals("-binary"))
+            binary = true;
         
+        Socket serverConnection = null;
         try (//Try with resources so we auto close resources
-            //Try with resources so we auto close resources
-            Socket serverConnection = new Socket(hostName, portNumber);
-            //get sockets output stream and open a printwriter on it 
-            PrintWriter SocketOut = new PrintWriter(serverConnection.getOutputStream(), true); 
-            //get sockets input stream and open a buffered reader on it
-            BufferedReader in = new BufferedReader(new InputStreamReader(serverConnection.getInputStream()));
             //create a bufferedreader for stdIn
             BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
             ){ //end of resources block
+            //the connection is not a resource, it is replaced if we reconnect.
+            serverConnection = new Socket(hostName, portNumber);
+            OutputStream socketOut = serverConnection.getOutputStream(); 
+            InputStream socketIn = serverConnection.getInputStream();
             
-            GameClient client = new GameClient(SocketOut,stdIn,in);
+            MessageReader in = new MessageReader(socketIn);
+            GameClient client = new GameClient(socketOut,stdIn,in,binary);
             startup = false;//end of startup stage
             client.setTimer();
             while(!shutdown && !serverConnection.isClosed()){
+                if(client.reconnect)
+                    serverConnection = client.reconnect(serverConnection, hostName, portNumber);
                 if(stdIn.ready()){
                     client.getUserInput();
                 }   
@@ -145,9 +177,36 @@ public class GameClient {
         } finally{
             if(heartbeatTimer != null)
                 heartbeatTimer.cancel();
+            try{
+                if(serverConnection != null)
+                    serverConnection.close();
+            }catch (IOException e){
+                //closing anyway.
+            }
         }
         
     }
+    
+    //replaces a lost connection, the session is resumed once the server welcomes us.
+    private Socket reconnect(Socket lost, String hostName, int portNumber) 
+            throws IOException, InterruptedException{
+        reconnect = false;
+        lost.close();
+        for(int i = 1; ; i++){
+            try{
+                Socket s = new Socket(hostName, portNumber);
+                sender = new MessageSender(s.getOutputStream());
+                in = new MessageReader(s.getInputStream());
+                resuming = true;
+                resetTimer();
+                return s;
+            }catch (IOException e){
+                if(i == RECONNECT_TRIES)
+                    throw e;
+                Thread.sleep(RECONNECT_DELAY);
+            }
+        }
+    }
 
     
     
@@ -159,59 +218,105 @@ public class GameClient {
  *
  */  
     private void readMessage() throws IOException{
-        String message = in.readLine();
-//
-//        if((message = in.readLine()) == null){ //this does not work
-//            debug.println("DEBUG: SOCKET CLOSED");
-//            shutdown = true;
-//            return;
-//        }
-        if(message.length() == 0)//ignore blank messages
+        ServerMessage message = in.read();
+        if(message == null)//ignore blank messages
             return;
         resetTimer();
-        switch (message.charAt(0)){
+        switch (message.type){
             case WELCOME:
                 state = 1;
-                printWelcome(message.substring(1));// the welcome message
+                boardSize = boardSize(message.text);
+                if(!resuming)
+                    printWelcome(message.text);// the welcome message
+                if(binary)
+                    sender.capabilitiesMsg(BINARY_VERSION);
+                else if(resuming)
+                    sender.resumeMsg(resumeToken);
+                break;
+            case CAPABILITIES:
+                if(message.value == BINARY_VERSION){//server agreed, everything after this is binary.
+                    in.setBinary(true);
+                    sender.setBinary(true);
+                }
+                if(resuming)
+                    sender.resumeMsg(resumeToken);
+                break;
+            case RESUME:
+                resumeToken = message.text;
+                if(resuming){
+                    resuming = false;
+                    state = 2;//the server sends our game, or the game list.
+                    out.println("\n================ Reconnected to the server =================\n");
+                }
                 break;
             case AVAILABLE_GAMES:
                 state = 3;
-                gameList(message.substring(1));// list of games
+                games.clear();
+                games.addAll(Arrays.asList(message.names));
+                gameList(games);// list of games
+                break;
+            case GAME_LIST_DELTA:
+                state = 3;
+                games.addAll(Arrays.asList(message.names));
+                games.removeAll(Arrays.asList(message.removed));
+                gameList(games);// list of games
                 break;
             case NEW_GAME:
                 //check to see if the server sent an error message.
-                if(message.substring(1).equals("2")){
+                if(message.value == 3){
+                    state = 14;
+                    out.println("================ You are watching " + gamename + " ================");
+                }else if(message.value == 2){
+                    watching = false;
                     out.println("Error joining or creating game, Please try another game name.");
                     //request gamlist again =====================================================================TODO
                     state = 3;
                 }else{
                     //if no error wait for start of game; 
-                    newGame(message.substring(1));//new or existing
+                    newGame(message.value);//new or existing
                     state = 5;
                 } 
                 break;
             case START_OF_GAME:
                 state = 6;
-                startOfGame(message.substring(1)); //other players     
+                startOfGame(message.names); //other players     
                 break;            
+            case START_LOCATION://we took too long, the server picked one.
+                location[0] = message.location[0];
+                location[1] = message.location[1];
+                state = 7;
+                out.printf("\n Out of time, you start at %d,%d.\n", location[0], location[1]);
+                break;
             case START_OF_TURN:
                 state = 8;
-                startOfTurn(message.substring(1)); //hp
+                startOfTurn(message.value); //hp
                 break;
             case END_OF_TURN:
                 state = 12;
-                endOfTurn(message.substring(1)); //hit scored:scan hits:xy
+                endOfTurn(message.hit, message.scanHits); //hit scored:scan hits:xy
+                break;
+            case BOARD:
+                board(message.value, message.names, message.ships);
                 break;
             case END_OF_GAME:
-                state = 13;
-                endOfGame(message.substring(1));//print results of game
-                shutdown = true;
+                endOfGame(message.value);//print results of game
+                if(watching){//back to the lobby, the server sends the game list.
+                    watching = false;
+                    state = 4;
+                }else{
+                    state = 13;
+                    shutdown = true;
+                }
                 break;           
             case HEARTBEAT:
-                heartbeat(message.substring(1));
+                heartbeat(message.text);
                 break;
             case ERROR:
-                if(state == 2){
+                if(resuming && message.value == RESUME_ERROR){
+                    resuming = false;
+                    resumeToken = null;
+                    out.print(" Could not get back into your game.\n Enter your login name: ");
+                }else if(state == 2){
                     state = 1;
                     out.print(" Username not avalible!\n Enter your login name: ");
                 }
@@ -229,32 +334,42 @@ public class GameClient {
         out.println("\n============================================================\n");
         out.print(" Enter your login name: ");
     }
-    private void gameList(String list){
+    private void gameList(Set<String> names){
         out.println("\n====================== Avalible Games ======================");
-        String[] names = list.split(STRING_SEPARATOR);
-        if(names[0].equals(""))
+        if(names.isEmpty())
             out.print(" (No Games Avalable)");
         for(String name: names)
             out.println(" "+name);        
-        out.print(" Enter the name of the game to join or create: ");
+        out.print(" Enter the name of the game to join or create, watch <game> or queue [players]: ");
     }
-    private void startOfGame(String list){
+    private void startOfGame(String[] names){
         out.println("=================== The Game Has Started ===================\n"
                   + " Your opponents are:");
-        String[] names = list.split(":");
         for(String name: names)
-            out.println(" "+name);
+            if(!name.equals(username))//battle royale rosters include us.
+                out.println(" "+name);
         out.print(" Enter your starting locaion [xy]: ");
     }
-    private void newGame(String s){
-        if(s.equals("0"))
+    private void newGame(int result){
+        if(result == 0)
             out.println("======= You have successfuly joined an existing game =======");
         else 
             out.println("=============== You have created a new game ================");
         out.println("        Please wait for the other players to join.\n");
     }
-    private void endOfGame(String result){
-        if(result.equals("0"))
+    private void board(int turn, String[] names, int[] ships){
+        out.println("======================== Turn " + turn + " ========================");
+        for(int i = 0; i < names.length; i++)
+            out.println(" " + names[i] + " (" + ships[i * 3] + "," + ships[i * 3 + 1] + ")"
+                    + (ships[i * 3 + 2] < 0 ? " sunk" : " " + (ships[i * 3 + 2] + 1) + " hp"));
+    }
+    private void endOfGame(int won){
+        if(watching){
+            out.println("\n==================== The Game Has Ended ====================\n");
+            return;
+        }
+        String result;
+        if(won == 0)
             result = "LOSE";
         else
             result = "WIN";
@@ -270,24 +385,19 @@ public class GameClient {
         //}else
             // server replied to our request
     }
-    private void endOfTurn(String turnReport){
+    private void endOfTurn(boolean hit, int[] scanHits){
         out.println("==================== The turn has ended ====================");
-        if(turnReport.charAt(0) == '1')
+        if(hit)
             out.println(" You scored a HIT!");
-        Integer scanHits = Integer.parseInt(turnReport.substring(1, 2));
-        if(scanHits > 0){
+        if(scanHits.length > 0){
             out.println(" Enemy detected at: ");
-            int offset = 2; //location in string of first cordinate
-            Integer x,y;
-            for(int i = 0; i < scanHits ; i++){
-                x = Integer.parseInt(turnReport.substring(offset, ++offset));
-                y = Integer.parseInt(turnReport.substring(offset, ++offset));
-                out.println(" (" + x.toString() + "," + y.toString() + ")");
+            for(int i = 0; i < scanHits.length ; i += 2){
+                out.println(" (" + scanHits[i] + "," + scanHits[i + 1] + ")");
             }      
         }
     }
-    private void startOfTurn(String hp){
-        Integer x = Integer.parseInt(hp) + 1;
+    private void startOfTurn(int hp){
+        Integer x = hp + 1;
         if ((hitpoints - x) > 0 )
             out.println(" You have been HIT!");
         hitpoints = x;
@@ -307,12 +417,19 @@ public class GameClient {
             case 1://server sent welcome message                
                 if(getLoginName()){
                     sender.loginMsg(username);
+                    sender.resumeMsg("");//ask for a token, in case we get cut off.
                     state = 2;
                 }
                 break;
             case 3://server has sent available games.
                 if(getGameName()){
-                    sender.connectMsg(gamename);
+                    if(watching)
+                        sender.watchMsg(gamename);
+                    else if(matchSize >= 0){
+                        sender.queueMsg(matchSize);
+                        out.println(" Waiting for a match.");
+                    }else
+                        sender.connectMsg(gamename);
                     state = 4;
                 }
                 break;
@@ -325,7 +442,7 @@ public class GameClient {
             case 8://server sent start of turn.
                 state = getTurnActionType(); //state = {8,9,10,11}
                 if(state == 11)
-                    sender.genericMessage(turnAction.replace('S', 'P')); 
+                    sendTurnAction(); 
                 break;
             case 9://user Entered fire or scan action; need target      
                 if(getCoords()){
@@ -362,6 +479,10 @@ public class GameClient {
                 getInput();//discard input.
                 out.println(" Still waiting for more players. Type q to abort.");
                 break;    
+            case 14://spectating
+                getInput(); //discard input.
+                out.println(" Watching the game. Type q to quit");
+                break;
             case 7://waiting on start of turn.
             case 11://waiting for other player
                 getInput(); //discard input.
@@ -398,6 +519,14 @@ public class GameClient {
     }
     private boolean getGameName() throws IOException, InterruptedException{
         gamename = getInput();
+        matchSize = -1;
+        if(gamename.matches("queue( \\d{1,4})?")){//queue [players]
+            matchSize = gamename.length() > 5 ? Integer.parseInt(gamename.substring(6)) : 0;
+            return true;
+        }
+        watching = gamename.startsWith("watch ");
+        if(watching)
+            gamename = gamename.substring(6).trim();
         if(gamename.matches("\\p{Alnum}+")){
             return true;
         }else{
@@ -410,13 +539,11 @@ public class GameClient {
     private boolean setStartLocation() throws IOException, InterruptedException{
         String userInput = getInput();
 
-        if(userInput.matches("\\d{2}")){
-            location[0]=Integer.parseInt(userInput.substring(0, 1));
-            location[1]=Integer.parseInt(userInput.substring(1, 2));
+        if(parseCoords(userInput, location) && onBoard(location)){
             out.println(" Ok, waiting for other players");
             return true;
         }else{
-            out.println(" Each coordinate must be a single digit,[xy]");
+            out.println(" Coordinates must be [xy] or [x,y], from 0 to " + (boardSize - 1));
             out.print(" Enter your starting locaion [xy]: ");
             return false;
         }
@@ -428,7 +555,8 @@ public class GameClient {
         
         //ok = turnAction.matches("[FfMmSs]");
         //advance user shortcut skips turn turn action value prompt.
-        if(turnAction.matches("[FS]\\d{2}|[M][12346789]")){ 
+        if(turnAction.matches("[M][12346789]") || (turnAction.matches("[FS].+") 
+                && parseCoords(turnAction.substring(1), targetCoordinates) && onBoard(targetCoordinates))){ 
             out.println(" Ok, waiting for other player");
             return 11;
         }
@@ -445,15 +573,51 @@ public class GameClient {
         return 8; //error.
            
     } 
+    //sends a turn action entered with the shortcut, F12 | S120,45 | M2
+    private void sendTurnAction(){
+        if(turnAction.charAt(0) == 'M'){
+            sender.moveMsg(Character.digit(turnAction.charAt(1), 10));
+            return;
+        }
+        parseCoords(turnAction.substring(1), targetCoordinates);
+        if(turnAction.charAt(0) == 'F')
+            sender.fireMsg(targetCoordinates[0], targetCoordinates[1]);
+        else
+            sender.scanMsg(targetCoordinates[0], targetCoordinates[1]);
+    }
+    //reads xy or x,y into coords, false if the input is neither.
+    private static boolean parseCoords(String input, Integer[] coords){
+        if(input.matches("\\d{2}")){
+            coords[0] = Character.digit(input.charAt(0), 10);
+            coords[1] = Character.digit(input.charAt(1), 10);
+            return true;
+        }
+        if(input.matches("\\d{1,9},\\d{1,9}")){
+            int comma = input.indexOf(',');
+            coords[0] = Integer.parseInt(input.substring(0, comma));
+            coords[1] = Integer.parseInt(input.substring(comma + 1));
+            return true;
+        }
+        return false;
+    }
+    private boolean onBoard(Integer[] coords){
+        return coords[0] < boardSize && coords[1] < boardSize;
+    }
+    /**
+     * Reads the board size from the servers welcome message.
+     * @return the size, DEFAULT_BOARD if the server does not give one.
+     */
+    static int boardSize(String welcome){
+        Matcher m = BOARD_RULE.matcher(welcome);
+        return m.find() ? Integer.parseInt(m.group(1)) : DEFAULT_BOARD;
+    }
     private boolean getCoords() throws IOException, InterruptedException{
         String userInput= getInput();
-        if (userInput.matches("\\d{2}")){
-            targetCoordinates[0] = Integer.parseInt(userInput.substring(0));
-            targetCoordinates[1] = Integer.parseInt(userInput.substring(1));
+        if (parseCoords(userInput, targetCoordinates) && onBoard(targetCoordinates)){
             out.println(" Ok, waiting for other player");
             return true;
         }else{
-            out.println(" Each coordinate must be a single digit");
+            out.println(" Coordinates must be [xy] or [x,y], from 0 to " + (boardSize - 1));
             out.print(" Enter the target coordinates [xy]: ");
             return false;
         }
@@ -491,7 +655,10 @@ public class GameClient {
         long timeLeft = CONNECTION_TIMEOUT - (time - timeOfLastMessage); //timeout - (elapsed time)
         
         //send heartbeat when less then 10 seconds is remaining before timeout.
-        if ( timeLeft < 0){
+        if ( timeLeft < 0 && resumeToken != null && !resuming){
+            out.println("\n Connection to server lost, reconnecting.");
+            reconnect = true;
+        } else if ( timeLeft < 0){
             shutdown = true;
             sender.quitMsg();
             out.println("\n Connection to server timed-out, Shutting down.");
@@ -0,0 +1,333 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package TextClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** 
+ * Headless load generator for the Game Server.
+ * Opens many connections, each one logs in, joins a game with C, plays it 
+ * to the end and answers heartbeats, with no user input. Every players 
+ * clients join the same game. Once all are done it prints the percentiles 
+ * of the connect time, the time from login to the start of the game, and 
+ * the turn round trip, from sending an action to the end of that turn.
+ * The turn round trip includes waiting for the other players in the game.
+ */
+public class LoadGenerator {
+    private static final int BINARY_VERSION = 1;
+    private static final int READ_TIMEOUT = 60000;  //milliseconds without a message before giving up.
+    private static final int STACK_SIZE = 256 * 1024; //thousands of threads, keep them small.
+    private static final int REPORT_INTERVAL = 5000;
+    
+    //settings
+    private static String host = "127.0.0.1";
+    private static int port = 9001;
+    private static int clients = 1000;   //concurrent connections.
+    private static int players = 4;      //players per game, must match the servers -players.
+    private static int games = 1;        //games each client plays, on a new connection each time.
+    private static int rate = 500;       //new connections per second while ramping up.
+    private static boolean random = false; //random actions, else fire at what our scans find.
+    private static boolean binary = false;
+    
+    //results
+    private static final Samples connectTimes = new Samples();
+    private static final Samples joinTimes = new Samples();
+    private static final Samples turnTimes = new Samples();
+    private static final AtomicInteger connected = new AtomicInteger();
+    private static final LongAdder turns = new LongAdder();
+    private static final LongAdder played = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    
+    private final int id;
+    private final String run;
+    private MessageSender sender;
+    private MessageReader in;
+    private final Samples connect = new Samples();
+    private final Samples join = new Samples();
+    private final Samples turn = new Samples();
+    private int targetX = -1, targetY;  //an enemy found by our last scan, -1 for none.
+    private int boardSize = GameClient.DEFAULT_BOARD; //from the servers welcome.
+    
+    private LoadGenerator(int id, String run){
+        this.id = id;
+        this.run = run;
+    }
+    
+    /**
+     * @param args the command line arguments
+     *        [host port] [-clients n] [-players n] [-games n] [-rate n] [-random] [-binary]
+     */
+    public static void main(String[] args) throws InterruptedException {
+        for(int i = 0; i < args.length; i++){
+            switch(args[i]){
+                case "-clients":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "-players":
+                    players = Integer.parseInt(args[++i]);
+                    break;
+                case "-games":
+                    games = Integer.parseInt(args[++i]);
+                    break;
+                case "-rate":
+                    rate = Integer.parseInt(args[++i]);
+                    break;
+                case "-random":
+                    random = true;
+                    break;
+                case "-binary":
+                    binary = true;
+                    break;
+                default:
+                    host = args[i];
+                    port = Integer.parseInt(args[++i]);
+            }
+        }
+        //keeps the names apart from earlier runs against the same server.
+        String run = Long.toString(System.currentTimeMillis() % 100000000, 36);
+        CountDownLatch done = new CountDownLatch(clients);
+        System.out.printf("%d clients in games of %d against %s:%d, %d games each\n", 
+                clients, players, host, port, games);
+        long start = System.nanoTime();
+        Thread reporter = new Thread(() -> report(start), "report");
+        reporter.setDaemon(true);
+        reporter.start();
+        for(int i = 0; i < clients; i++){
+            LoadGenerator c = new LoadGenerator(i, run);
+            new Thread(null, () -> {
+                try{
+                    c.play();
+                }finally{
+                    done.countDown();
+                }
+            }, "load" + i, STACK_SIZE).start();
+            //ramp up, or the servers accept backlog overflows.
+            long due = start + (i + 1) * 1000000000L / rate;
+            long wait = due - System.nanoTime();
+            if(wait > 0)
+                Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("\n%d games played in %.1fs, %d failed connections, %d error messages\n",
+                played.sum() / players, seconds, failures.sum(), errors.sum());
+        System.out.printf("%.0f turns/s\n", turns.sum() / seconds);
+        System.out.println("                    count      p50      p90      p99    p99.9      max (ms)");
+        connectTimes.print("connect");
+        joinTimes.print("login to game");
+        turnTimes.print("turn round trip");
+    }
+    
+    //progress while the run goes on.
+    private static void report(long start){
+        long last = 0;
+        try{
+            while(true){
+                Thread.sleep(REPORT_INTERVAL);
+                long t = turns.sum();
+                System.out.printf("%4ds  %d connected  %d games done  %d turns/s\n", 
+                        (System.nanoTime() - start) / 1000000000L, connected.get(), 
+                        played.sum() / players, (t - last) * 1000 / REPORT_INTERVAL);
+                last = t;
+            }
+        }catch (InterruptedException e){
+            //done.
+        }
+    }
+    
+    private void play(){
+        try{
+            for(int g = 0; g < games; g++)
+                playGame(g);
+        }finally{
+            connectTimes.add(connect);
+            joinTimes.add(join);
+            turnTimes.add(turn);
+        }
+    }
+    
+    //one game on its own connection.
+    private void playGame(int round){
+        long t = System.nanoTime();
+        try(Socket s = new Socket()){
+            s.connect(new InetSocketAddress(host, port), READ_TIMEOUT);
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(READ_TIMEOUT);
+            connect.add(System.nanoTime() - t);
+            connected.incrementAndGet();
+            sender = new MessageSender(s.getOutputStream());
+            in = new MessageReader(s.getInputStream());
+            try{
+                converse("load" + run + "p" + id + "g" + round, 
+                        "load" + run + "g" + (id / players) + "r" + round);
+            }finally{
+                connected.decrementAndGet();
+            }
+        }catch (IOException e){
+            failures.increment();
+        }
+    }
+    
+    //answers the server until the game is over.
+    private void converse(String username, String gamename) throws IOException{
+        long loggedIn = 0;
+        long acted = 0;
+        targetX = -1;
+        while(true){
+            ServerMessage m = in.read();
+            if(m == null)//the server never sends a blank message.
+                throw new IOException("Connection to the server lost");
+            switch(m.type){
+                case GameClient.WELCOME:
+                    boardSize = GameClient.boardSize(m.text);
+                    if(binary)
+                        sender.capabilitiesMsg(BINARY_VERSION);
+                    else
+                        loggedIn = login(username, gamename);
+                    break;
+                case GameClient.CAPABILITIES:
+                    if(m.value != BINARY_VERSION)
+                        throw new IOException("Server refused binary messages");
+                    sender.setBinary(true);
+                    in.setBinary(true);
+                    loggedIn = login(username, gamename);
+                    break;
+                case GameClient.NEW_GAME:
+                    if(m.value == 2)
+                        throw new IOException("Could not join " + gamename);
+                    break;
+                case GameClient.START_OF_GAME:
+                    join.add(System.nanoTime() - loggedIn);
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    sender.startMsg(r.nextInt(boardSize), r.nextInt(boardSize));
+                    break;
+                case GameClient.START_OF_TURN:
+                    acted = System.nanoTime();
+                    act();
+                    break;
+                case GameClient.END_OF_TURN:
+                    if(acted != 0){
+                        turn.add(System.nanoTime() - acted);
+                        turns.increment();
+                        acted = 0;
+                    }
+                    endOfTurn(m.scanHits);
+                    break;
+                case GameClient.HEARTBEAT:
+                    sender.hbMsg(m.text);
+                    break;
+                case GameClient.ERROR:
+                    errors.increment();
+                    break;
+                case GameClient.END_OF_GAME:
+                    played.increment();
+                    sender.quitMsg();
+                    return;
+                default:
+                    //game lists and the like.
+            }
+        }
+    }
+    
+    //logs in and asks for the game, returns the time to measure the join from.
+    private long login(String username, String gamename){
+        long t = System.nanoTime();
+        sender.loginMsg(username);
+        sender.connectMsg(gamename);
+        return t;
+    }
+    
+    private void act(){
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        if(!random && targetX >= 0){
+            sender.fireMsg(targetX, targetY);
+            return;
+        }
+        switch(r.nextInt(random ? 3 : 2)){
+            case 0:
+                sender.scanMsg(r.nextInt(boardSize), r.nextInt(boardSize));
+                break;
+            case 1:
+                int dir;
+                do{
+                    dir = 1 + r.nextInt(9);
+                }while(dir == 5);
+                sender.moveMsg(dir);
+                break;
+            default:
+                sender.fireMsg(r.nextInt(boardSize), r.nextInt(boardSize));
+        }
+    }
+    
+    private void endOfTurn(int[] scanHits){
+        if(scanHits.length == 0){
+            targetX = -1;
+            return;
+        }
+        int i = ThreadLocalRandom.current().nextInt(scanHits.length / 2) * 2;
+        targetX = scanHits[i];
+        targetY = scanHits[i + 1];
+    }
+    
+    //nanosecond samples, one per client and merged at the end.
+    private static class Samples {
+        private long[] values = new long[16];
+        private int count;
+        
+        void add(long value){
+            if(count == values.length)
+                values = Arrays.copyOf(values, count * 2);
+            values[count++] = value;
+        }
+        synchronized void add(Samples s){
+            if(count + s.count > values.length)
+                values = Arrays.copyOf(values, Math.max(values.length * 2, count + s.count));
+            System.arraycopy(s.values, 0, values, count, s.count);
+            count += s.count;
+        }
+        synchronized void print(String name){
+            Arrays.sort(values, 0, count);
+            System.out.printf("%-16s %8d %8.2f %8.2f %8.2f %8.2f %8.2f\n", name, count, 
+                    percentile(0.5), percentile(0.9), percentile(0.99), percentile(0.999), 
+                    percentile(1));
+        }
+        //in milliseconds.
+        private double percentile(double p){
+            if(count == 0)
+                return 0;
+            int i = (int)Math.ceil(p * count) - 1;
+            return values[Math.max(i, 0)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package TextClient;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/** 
+ * Message reader for Text based Game Client
+ * Reads text lines, or binary frames once they have been negotiated.
+ */
+public class MessageReader {
+    private static final String STRING_SEPARATOR = ":";
+    private static final int EXTENDED = 0xffff; //a 4 byte length follows.
+    private static final int MAX_FRAME = 1 << 24; //longest frame we will take.
+    private final DataInputStream in;
+    private boolean binary = false;
+    //current binary frame.
+    private byte[] frame = new byte[256];
+    private int cursor;
+    private int end;
+    
+    public MessageReader(InputStream in){
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+    
+    public void setBinary(boolean binary){
+        this.binary = binary;
+    }
+    
+    /**
+     * @return true if there is something to read.
+     */
+    public boolean ready() throws IOException{
+        return in.available() > 0;
+    }
+    
+    /**
+     * Blocks until a whole message has been read.
+     * @return the message, or null for a blank message.
+     */
+    ServerMessage read() throws IOException{
+        return binary ? readFrame() : readLine();
+    }
+    
+    private ServerMessage readLine() throws IOException{
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != '\n'){
+            if(b < 0)
+                throw new EOFException("Server closed the connection");
+            if(b != '\r')
+                line.write(b);
+        }
+        String message = line.toString("US-ASCII");
+        if(message.length() == 0)//ignore blank messages
+            return null;
+        ServerMessage m = new ServerMessage();
+        m.type = message.charAt(0);
+        String body = message.substring(1);
+        switch(m.type){
+            case GameClient.WELCOME:
+            case GameClient.HEARTBEAT:
+            case GameClient.RESUME:
+                m.text = body;
+                break;
+            case GameClient.AVAILABLE_GAMES:
+            case GameClient.START_OF_GAME:
+                m.names = body.isEmpty() ? new String[0] : body.split(STRING_SEPARATOR);
+                break;
+            case GameClient.END_OF_TURN:
+                m.hit = body.charAt(0) == '1';
+                if(body.length() == 1 || body.charAt(1) == ':'){//E1:x,y:x,y
+                    String[] hits = body.length() == 1 ? new String[0] 
+                            : body.substring(2).split(STRING_SEPARATOR);
+                    m.scanHits = new int[hits.length * 2];
+                    for(int i = 0; i < hits.length; i++){
+                        int comma = hits[i].indexOf(',');
+                        m.scanHits[i * 2] = Integer.parseInt(hits[i].substring(0, comma));
+                        m.scanHits[i * 2 + 1] = Integer.parseInt(hits[i].substring(comma + 1));
+                    }
+                    break;
+                }
+                int hits = Integer.parseInt(body.substring(1, 2));
+                m.scanHits = new int[hits * 2];
+                for(int i = 0; i < hits * 2; i++)
+                    m.scanHits[i] = Integer.parseInt(body.substring(2 + i, 3 + i));
+                break;
+            case GameClient.BOARD://R[turn]{:name,x,y,hp}*
+                String[] players = body.split(STRING_SEPARATOR);
+                m.value = Integer.parseInt(players[0]);
+                m.names = new String[players.length - 1];
+                m.ships = new int[m.names.length * 3];
+                for(int i = 0; i < m.names.length; i++){
+                    String[] f = players[i + 1].split(",");
+                    m.names[i] = f[0];
+                    for(int j = 0; j < 3; j++)
+                        m.ships[i * 3 + j] = Integer.parseInt(f[j + 1]);
+                }
+                break;
+            case GameClient.START_LOCATION://S[x][y] or S<x>,<y>
+                int comma = body.indexOf(',');
+                if(comma < 0)
+                    m.location = new int[]{Integer.parseInt(body.substring(0, 1)), 
+                            Integer.parseInt(body.substring(1))};
+                else
+                    m.location = new int[]{Integer.parseInt(body.substring(0, comma)), 
+                            Integer.parseInt(body.substring(comma + 1))};
+                break;
+            default:
+                m.value = body.isEmpty() ? 0 : Integer.parseInt(body);
+        }
+        return m;
+    }
+    
+    private ServerMessage readFrame() throws IOException{
+        int len = in.readUnsignedShort();
+        if(len == EXTENDED)
+            len = in.readInt();
+        if(len < 0 || len > MAX_FRAME)
+            throw new IOException("Malformed message from server");
+        if(len > frame.length)
+            frame = new byte[len];
+        in.readFully(frame, 0, len);
+        if(len == 0)
+            return null;
+        cursor = 1;
+        end = len;
+        ServerMessage m = new ServerMessage();
+        m.type = (char)frame[0];
+        switch(m.type){
+            case GameClient.WELCOME:
+            case GameClient.HEARTBEAT:
+            case GameClient.RESUME:
+                m.text = new String(frame, 1, len - 1, StandardCharsets.UTF_8);
+                break;
+            case GameClient.AVAILABLE_GAMES:
+            case GameClient.START_OF_GAME:
+                m.names = readList();
+                break;
+            case GameClient.GAME_LIST_DELTA:
+                m.names = readList();
+                m.removed = readList();
+                break;
+            case GameClient.END_OF_TURN:
+                m.hit = varint() == 1;
+                m.scanHits = new int[varint() * 2];
+                for(int i = 0; i < m.scanHits.length; i++)
+                    m.scanHits[i] = varint();
+                break;
+            case GameClient.BOARD:
+                m.value = varint();
+                m.names = new String[varint()];
+                m.ships = new int[m.names.length * 3];
+                for(int i = 0; i < m.names.length; i++){
+                    m.names[i] = readString();
+                    m.ships[i * 3] = varint();
+                    m.ships[i * 3 + 1] = varint();
+                    m.ships[i * 3 + 2] = varint() - 1;
+                }
+                break;
+            case GameClient.START_LOCATION:
+                m.location = new int[]{varint(), varint()};
+                break;
+            default:
+                m.value = varint();
+        }
+        return m;
+    }
+    
+    private String[] readList() throws IOException{
+        String[] list = new String[varint()];
+        for(int i = 0; i < list.length; i++)
+            list[i] = readString();
+        return list;
+    }
+    
+    //string with a varint length prefix.
+    private String readString() throws IOException{
+        int n = varint();
+        if(n > end - cursor)
+            throw new IOException("Malformed message from server");
+        String s = new String(frame, cursor, n, StandardCharsets.UTF_8);
+        cursor += n;
+        return s;
+    }
+    
+    private int varint() throws IOException{
+        int value = 0;
+        for(int shift = 0; cursor < end && shift < 32; shift += 7){
+            byte b = frame[cursor++];
+            value |= (b & 0x7f) << shift;
+            if(b >= 0)
+                return value;
+        }
+        throw new IOException("Malformed message from server");
+    }
+}
@@ -24,11 +24,17 @@
 
 package TextClient;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 
 /** 
  * Message sender for Text based Game Client
  * Handles the formatting and sending of messages.
+ * Once binary messages have been negotiated each message is sent as a 
+ * frame: [length: 2 bytes][header][fields], integers as varints.
  * @author Joel Cranston
  */
 public class MessageSender {
@@ -41,44 +47,160 @@ public class MessageSender {
     static final String QUIT = "Q";
     static final String HEART = "H";
     static final String GAMELST = "G";
+    static final String CAPABILITIES = "K";
+    static final String WATCH = "V";
+    static final String RESUME = "U";
+    static final String QUEUE = "J";
     private final PrintWriter out;
+    private final OutputStream rawOut;
+    private boolean binary = false;
     
-    public MessageSender(PrintWriter out){
-        this.out = out;
+    public MessageSender(OutputStream out){
+        this.rawOut = out;
+        this.out = new PrintWriter(out, true);
     }   
+    public void setBinary(boolean binary){
+        this.binary = binary;
+    }
     public void loginMsg(String s){
-        out.println(LOGIN + s);
+        if(binary)
+            send(new Frame(LOGIN).string(s));
+        else
+            out.println(LOGIN + s);
     }
     public void connectMsg(String s){
-        out.println(CONNECT + s);
+        if(binary)
+            send(new Frame(CONNECT).string(s));
+        else
+            out.println(CONNECT + s);
+    }
+    public void watchMsg(String s){
+        if(binary)
+            send(new Frame(WATCH).string(s));
+        else
+            out.println(WATCH + s);
+    }
+    /**
+     * Asks for a resume token, or resumes a session with one.
+     * @param token is the token, or empty to ask for one.
+     */
+    public void resumeMsg(String token){
+        if(binary)
+            send(new Frame(RESUME).string(token));
+        else
+            out.println(RESUME + token);
+    }
+    /**
+     * Asks to be matched into a game.
+     * @param players is the game size, or 0 for the servers default.
+     */
+    public void queueMsg(int players){
+        if(binary)
+            send(players > 0 ? new Frame(QUEUE).varint(players) : new Frame(QUEUE));
+        else
+            out.println(players > 0 ? QUEUE + players : QUEUE);
     }
     public void startMsg(Integer x, Integer y){
-        out.println(START+ x.toString() + y.toString());
+        if(binary)
+            send(new Frame(START).varint(x).varint(y));
+        else
+            out.println(START + coordinates(x, y));
     }
     public void moveMsg(Integer d){
-        out.println(MOVE + d.toString());
+        if(binary)
+            send(new Frame(MOVE).varint(d));
+        else
+            out.println(MOVE + d.toString());
     }
     public void fireMsg(Integer x, Integer y){
-        out.println(FIRE+ x.toString() + y.toString());
+        if(binary)
+            send(new Frame(FIRE).varint(x).varint(y));
+        else
+            out.println(FIRE + coordinates(x, y));
     }    
     public void scanMsg(Integer x, Integer y){
-        out.println(SCAN + x.toString() + y.toString());
+        if(binary)
+            send(new Frame(SCAN).varint(x).varint(y));
+        else
+            out.println(SCAN + coordinates(x, y));
     }
 
     /**
      * Sends a user formatted message to the server.
+     * Only valid before binary messages are negotiated.
      * @param ta is a properly formated message
      */
     public void genericMessage(String ta){
         out.println(ta);
     }
     public void gamelistMsg(){
-        out.println(GAMELST);
+        if(binary)
+            send(new Frame(GAMELST));
+        else
+            out.println(GAMELST);
     }         
     public void quitMsg(){
-        out.println(QUIT);
+        if(binary)
+            send(new Frame(QUIT));
+        else
+            out.println(QUIT);
     }
     public void hbMsg(String s){
-        out.println(HEART + s);
+        if(binary)
+            send(new Frame(HEART).string(s));
+        else
+            out.println(HEART + s);
+    }
+    /**
+     * Asks the server for binary messages, always sent as text.
+     * @param version is the binary protocol version.
+     */
+    public void capabilitiesMsg(int version){
+        out.println(CAPABILITIES + version);
+    }
+    
+    //single digits as xy, anything larger as x,y
+    private static String coordinates(Integer x, Integer y){
+        if(x <= 9 && y <= 9)
+            return x.toString() + y.toString();
+        return x + "," + y;
+    }
+    
+    private synchronized void send(Frame f){
+        try{
+            rawOut.write(f.finish(), 0, f.size());
+            rawOut.flush();
+        }catch (IOException e){
+            //the main loop will notice the closed connection.
+        }
+    }
+    
+    //a frame being built, starts with room for the length.
+    private static class Frame extends ByteArrayOutputStream {
+        Frame(String type){
+            super(16);
+            write(0);
+            write(0);
+            write(type.charAt(0));
+        }
+        Frame varint(int value){
+            while((value & ~0x7f) != 0){
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+            return this;
+        }
+        Frame string(String s){
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            write(b, 0, b.length);
+            return this;
+        }
+        byte[] finish(){
+            int len = count - 2;
+            buf[0] = (byte)(len >>> 8);
+            buf[1] = (byte)len;
+            return buf;
+        }
     }
 }
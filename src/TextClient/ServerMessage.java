@@ -0,0 +1,42 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Joel Cranston.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package TextClient;
+
+/** 
+ * A decoded server message for the Text based Game Client.
+ */
+class ServerMessage {
+    char type;
+    int value;          //NewGame result, error code, hit points, win flag, version, or turn.
+    boolean hit;        //EndOfTurn, true if our shot hit.
+    int[] scanHits;     //EndOfTurn, x,y pairs of each scan hit.
+    String text;        //Welcome and heartbeat strings.
+    String[] names;     //Available games, or opponents at the start of a game.
+                        //Games added, for a game list delta.
+    String[] removed;   //Games removed, for a game list delta.
+    int[] ships;        //Board summary, x,y,hp of each player in names.
+    int[] location;     //Start location the server picked, x,y.
+}